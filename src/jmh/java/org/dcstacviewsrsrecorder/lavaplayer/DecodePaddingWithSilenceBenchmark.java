@@ -0,0 +1,59 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Rendering a mostly idle hour of one frequency with the radio effect, six 5s transmissions of the sample audio
+    ten minutes apart, at 48kHz and narrowband. Codecs come from the pools, warm after the first export.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class DecodePaddingWithSilenceBenchmark {
+    static final long HOUR = 3600_000;
+
+    @Param({ "48000", "16000" })
+    public int sampleRate;
+
+    private List<AudioStore.Packet> packets;
+
+    @Setup
+    public void setUp() {
+        packets = Fixtures.transmissions(Fixtures.START + 60_000, 6, 600_000, 250, Fixtures.LABEL);
+    }
+
+    @Benchmark
+    public long idleHour() {
+        return LavaFunctions.decodePaddingWithSilence(
+                packets.stream(),
+                Fixtures.START,
+                Fixtures.START + HOUR,
+                LavaFunctions.SRS_OPUS,
+                sampleRate,
+                () -> LavaFunctions.radioEffectFilter(sampleRate)::apply,
+                frames -> {
+                    try (frames) {
+                        return frames.mapToLong(frame -> frame.getData().length).sum();
+                    }
+                }
+        );
+    }
+}
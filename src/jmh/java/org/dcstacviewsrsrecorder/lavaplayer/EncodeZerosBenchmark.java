@@ -0,0 +1,48 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import com.sedmelluq.discord.lavaplayer.format.transcoder.AudioChunkEncoder;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Encoding an hour of zeros, as gaps were padded before the silent frame was cached, to compare with
+    DecodePaddingWithSilenceBenchmark's idle hour.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class EncodeZerosBenchmark {
+    static final long FRAMES = DecodePaddingWithSilenceBenchmark.HOUR / 20;
+
+    @Benchmark
+    public long hourOfZeros() {
+        AudioChunkEncoder encoder = LavaFunctions.SRS_OPUS.createEncoder(new AudioConfiguration());
+        ShortBuffer zeros = ByteBuffer.allocateDirect(LavaFunctions.SRS_OPUS.totalSampleCount() * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        long bytes = 0;
+        try {
+            for(long frame = 0; frame < FRAMES; frame++) {
+                zeros.clear();
+                bytes += encoder.encode(zeros).length;
+            }
+        } finally {
+            encoder.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,52 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+    The iirj filter the radio effect replaced, on the same 20ms buffer as RadioEffectFilterBenchmark at 48kHz, to
+    compare the two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IirjFilterBenchmark {
+    private Function<ShortBuffer, ShortBuffer> filter;
+    private short[] tone;
+    private ShortBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        filter = RadioEffectFilterTest.iirjFilter(RadioEffectFilter.NOISE_GAIN);
+        tone = new short[48000 / 50];
+        for(int i = 0; i < tone.length; i++) {
+            tone[i] = (short) (6000 * Math.sin(2 * Math.PI * 1000 * i / 48000.0));
+        }
+        buffer = ByteBuffer.allocateDirect(tone.length * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    @Benchmark
+    public ShortBuffer filter() {
+        buffer.clear();
+        buffer.put(tone);
+        buffer.flip();
+        return filter.apply(buffer);
+    }
+}
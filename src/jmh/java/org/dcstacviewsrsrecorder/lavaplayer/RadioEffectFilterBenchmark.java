@@ -0,0 +1,55 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+    The radio effect on a 20ms buffer of a decoded tone, at 48kHz and narrowband.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RadioEffectFilterBenchmark {
+    @Param({ "48000", "16000" })
+    public int sampleRate;
+
+    private Function<ShortBuffer, ShortBuffer> filter;
+    private short[] tone;
+    private ShortBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        filter = LavaFunctions.radioEffectFilter(sampleRate);
+        tone = new short[sampleRate / 50];
+        for(int i = 0; i < tone.length; i++) {
+            tone[i] = (short) (6000 * Math.sin(2 * Math.PI * 1000 * i / sampleRate));
+        }
+        buffer = ByteBuffer.allocateDirect(tone.length * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    @Benchmark
+    public ShortBuffer filter() {
+        buffer.clear();
+        buffer.put(tone);
+        buffer.flip();
+        return filter.apply(buffer);
+    }
+}
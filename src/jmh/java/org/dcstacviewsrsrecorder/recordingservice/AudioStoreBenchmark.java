@@ -0,0 +1,92 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+    A store in a temporary directory holding an hour of one frequency, a 5s transmission every minute. Saving a
+    packet after the last, viewing a minute of packets as an export does, and finding an hour's transmissions as the
+    timeline does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioStoreBenchmark {
+    static final String KEY = "benchmark";
+    static final long HOUR = 3600_000;
+
+    private Path dataDir;
+    private AudioStore audioStore;
+    private byte[] audio;
+    private long timestamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("audio-store-benchmark");
+        audioStore = new AudioStore(dataDir);
+        for(AudioStore.Packet packet : Fixtures.transmissions(Fixtures.START, 60, 60_000, 250, Fixtures.LABEL)) {
+            audioStore.save(KEY, packet);
+        }
+        audio = Fixtures.opusPackets().get(100);
+        timestamp = Fixtures.START + HOUR;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        audioStore.close();
+        try (Stream<Path> paths = Files.walk(dataDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void save() {
+        timestamp += 20;
+        audioStore.save(KEY, new AudioStore.SimplePacket(timestamp, audio, Fixtures.LABEL));
+    }
+
+    @Benchmark
+    public long viewMinute() {
+        return audioStore.viewAllForFrequency(
+                KEY,
+                Fixtures.LABEL,
+                Instant.ofEpochMilli(Fixtures.START + 30 * 60_000),
+                Instant.ofEpochMilli(Fixtures.START + 31 * 60_000),
+                packets -> packets.mapToLong(packet -> packet.getBytes().length).sum()
+        );
+    }
+
+    @Benchmark
+    public List<AudioStore.Transmission> findTransmissions() {
+        return audioStore.findTransmissions(KEY, Instant.ofEpochMilli(Fixtures.START), Instant.ofEpochMilli(Fixtures.START + HOUR));
+    }
+}
@@ -0,0 +1,98 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+    Exporting a minute of one frequency transmitting throughout, 3000 frames, from the packet log to Ogg Opus as a
+    download does, with and without the radio effect. With -prof gc, gc.alloc.rate.norm is the bytes allocated per
+    minute exported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+    static final String KEY = "benchmark";
+    static final long MINUTE = 60_000;
+
+    @Param({ "true", "false" })
+    public boolean radioEffect;
+
+    private Path dataDir;
+    private AudioStore audioStore;
+    private AudioArchiveService audioArchiveService;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("export-benchmark");
+        audioStore = new AudioStore(dataDir);
+        for(AudioStore.Packet packet : Fixtures.transmissions(Fixtures.START, 1, MINUTE, (int) (MINUTE / 20), Fixtures.LABEL)) {
+            audioStore.save(KEY, packet);
+        }
+        audioArchiveService = new AudioArchiveService();
+        audioArchiveService.audioStore = audioStore;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        audioStore.close();
+        try (Stream<Path> paths = Files.walk(dataDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public long exportMinute() {
+        long[] bytes = new long[]{ 0 };
+        audioArchiveService.export(
+                KEY,
+                Fixtures.LABEL,
+                Instant.ofEpochMilli(Fixtures.START),
+                Instant.ofEpochMilli(Fixtures.START + MINUTE),
+                radioEffect,
+                false,
+                new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        bytes[0]++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        bytes[0] += len;
+                    }
+                }
+        );
+        return bytes[0];
+    }
+}
@@ -0,0 +1,54 @@
+package org.dcstacviewsrsrecorder.srs;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Parsing a received SRS voice packet as RadioReceiver and AudioStore do, and building one as RadioStation does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpVoicePacketBenchmark {
+    static final List<Double> FREQUENCIES = List.of(2.51E8, 3.05E8);
+
+    private byte[] audio;
+    private byte[] datagram;
+    private long packetId;
+
+    @Setup
+    public void setUp() {
+        audio = Fixtures.opusPackets().get(100);
+        datagram = Fixtures.voicePacket(audio, FREQUENCIES, 1).getBytes();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        UdpVoicePacket packet = new UdpVoicePacket(datagram, 0);
+        blackhole.consume(packet.frequencies());
+        blackhole.consume(packet.audioData());
+        blackhole.consume(packet.packetId());
+        blackhole.consume(packet.transmissionGuid());
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return Fixtures.voicePacket(audio, FREQUENCIES, packetId++).getBytes();
+    }
+}
@@ -0,0 +1,88 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Reading every line of a segment of the fixture recording repeated up to megabytes, with the Scanner
+    TacviewQueryService used before and with AcmiLineReader, decoding each line or leaving it as bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AcmiLineReaderBenchmark {
+    @Param({"500"})
+    public int megabytes;
+
+    private Path segment;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] recording = (String.join("\n", Fixtures.acmiLines()) + "\n").getBytes(StandardCharsets.UTF_8);
+        segment = Files.createTempFile("acmi-line-reader-benchmark", ".txt.acmi");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(segment))) {
+            for(long written = 0; written < megabytes * 1024L * 1024L; written += recording.length) {
+                out.write(recording);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(segment);
+    }
+
+    @Benchmark
+    public void scanner(Blackhole blackhole) throws IOException {
+        try (Scanner scanner = new Scanner(new InputStreamReader(new FileInputStream(segment.toFile()), StandardCharsets.UTF_8))) {
+            scanner.useDelimiter("(?<!\\\\)\\n");
+            while(scanner.hasNext()) {
+                blackhole.consume(scanner.next());
+            }
+        }
+    }
+
+    @Benchmark
+    public void lines(Blackhole blackhole) throws IOException {
+        try (AcmiLineReader reader = AcmiLineReader.open(segment, 0, -1)) {
+            while(reader.next()) {
+                blackhole.consume(reader.line());
+            }
+        }
+    }
+
+    @Benchmark
+    public void bytes(Blackhole blackhole) throws IOException {
+        try (AcmiLineReader reader = AcmiLineReader.open(segment, 0, -1)) {
+            while(reader.next()) {
+                blackhole.consume(reader.length());
+            }
+        }
+    }
+}
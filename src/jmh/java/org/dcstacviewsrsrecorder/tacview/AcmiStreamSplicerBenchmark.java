@@ -0,0 +1,53 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.dcstacviewsrsrecorder.recordingservice.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Splicing the middle 10s out of the 30s fixture recording, a line at a time as TacviewQueryService does:
+    the first 10s aggregated into state, the next 10s passed through, the rest dropped.
+    Lines are encoded up front, as the reader leaves them. Run with -prof gc for the allocation per splice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcmiStreamSplicerBenchmark {
+    private byte[][] lines;
+    private Interval<Instant> interval;
+
+    @Setup
+    public void setUp() {
+        lines = Fixtures.acmiLines().stream().map(l -> l.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        interval = Interval.between(Instant.ofEpochMilli(Fixtures.START + 10_000), Instant.ofEpochMilli(Fixtures.START + 20_000));
+    }
+
+    @Benchmark
+    public void apply(Blackhole blackhole) throws IOException {
+        AcmiStreamSplicer splicer = new AcmiStreamSplicer(interval);
+        OutputStream out = OutputStream.nullOutputStream();
+        for(byte[] line : lines) {
+            splicer.apply(line, 0, line.length, out);
+        }
+        blackhole.consume(splicer);
+    }
+}
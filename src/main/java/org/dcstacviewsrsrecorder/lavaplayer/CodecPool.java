@@ -0,0 +1,166 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+    Codecs kept between exports by key, so that each export doesn't allocate native Opus state and direct buffers.
+    A released codec is kept if fewer than maxIdle of its key are idle, recycled first to make it ready for the next
+    borrower, otherwise closed without being recycled. Borrowing creates a codec only when none of the key is idle.
+
+    Borrowing isn't capped here, as a capped borrow would have to wait and an export borrowing several could deadlock
+    waiting on another. Instead the renders and mixdowns borrowing codecs are bounded, see LavaFunctions.RENDERS: a
+    render holds a decoder and a pipeline, a mixdown a pipeline and two decoders per label. The
+    recorder.codecs.borrowed gauge counts codecs in use.
+ */
+public class CodecPool<K, T> {
+    private final int maxIdle;
+    private final Function<K, T> create;
+    private final Consumer<T> recycle;
+    private final Consumer<T> close;
+    private final Map<K, Deque<T>> idle = new HashMap<>();
+    private int idleCount;
+    private int borrowedCount;
+
+    private final Counter created;
+    private final Counter reused;
+    private final Counter closed;
+
+    public CodecPool(String kind, int maxIdle, Function<K, T> create, Consumer<T> recycle, Consumer<T> close) {
+        this.maxIdle = maxIdle;
+        this.create = create;
+        this.recycle = recycle;
+        this.close = close;
+        created = Metrics.counter("recorder.codecs.created", "kind", kind);
+        reused = Metrics.counter("recorder.codecs.reused", "kind", kind);
+        closed = Metrics.counter("recorder.codecs.closed", "kind", kind);
+        Metrics.gauge("recorder.codecs.idle", Tags.of("kind", kind), this, CodecPool::idleCount);
+        Metrics.gauge("recorder.codecs.borrowed", Tags.of("kind", kind), this, CodecPool::borrowedCount);
+    }
+
+    public T borrow(K key) {
+        T codec;
+        synchronized (this) {
+            Deque<T> codecs = idle.get(key);
+            codec = codecs == null ? null : codecs.pollFirst();
+            if(codec != null) {
+                idleCount--;
+            }
+            borrowedCount++;
+        }
+        if(codec != null) {
+            reused.increment();
+            return codec;
+        }
+        created.increment();
+        return create.apply(key);
+    }
+
+    /*
+        Returns a codec borrowed for key. A codec that fails to recycle is closed.
+     */
+    public void release(K key, T codec) {
+        synchronized (this) {
+            borrowedCount--;
+        }
+        if(!hasRoom(key)) {
+            discard(codec);
+            return;
+        }
+        try {
+            recycle.accept(codec);
+        } catch (RuntimeException e) {
+            discard(codec);
+            throw e;
+        }
+        synchronized (this) {
+            if(hasRoom(key)) { // still, others may have been released while recycling
+                idle.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(codec);
+                idleCount++;
+                return;
+            }
+        }
+        discard(codec);
+    }
+
+    private synchronized boolean hasRoom(K key) {
+        Deque<T> codecs = idle.get(key);
+        return codecs == null || codecs.size() < maxIdle;
+    }
+
+    /*
+        Closes the idle codecs.
+     */
+    public void clear() {
+        Deque<T> codecs = new ArrayDeque<>();
+        synchronized (this) {
+            idle.values().forEach(codecs::addAll);
+            idle.clear();
+            idleCount = 0;
+        }
+        codecs.forEach(this::discard);
+    }
+
+    public synchronized int idleCount() {
+        return idleCount;
+    }
+
+    public synchronized int borrowedCount() {
+        return borrowedCount;
+    }
+
+    private void discard(T codec) {
+        closed.increment();
+        close.accept(codec);
+    }
+
+    /*
+        A format and the PCM the codec decodes to or encodes from.
+     */
+    public static class Key {
+        private final AudioDataFormat format;
+        private final int channels;
+        private final int sampleRate;
+
+        public Key(AudioDataFormat format, int channels, int sampleRate) {
+            this.format = format;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+        }
+
+        public AudioDataFormat getFormat() {
+            return format;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return channels == other.channels && sampleRate == other.sampleRate && format.equals(other.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(format, channels, sampleRate);
+        }
+    }
+}
@@ -5,16 +5,19 @@ import com.sedmelluq.discord.lavaplayer.filter.AudioPipelineFactory;
 import com.sedmelluq.discord.lavaplayer.filter.PcmFormat;
 import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
 import com.sedmelluq.discord.lavaplayer.format.OpusAudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.format.transcoder.AudioChunkDecoder;
+import com.sedmelluq.discord.lavaplayer.format.transcoder.AudioChunkEncoder;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusDecoder;
 import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerOptions;
 import com.sedmelluq.discord.lavaplayer.track.playback.AllocatingAudioFrameBuffer;
 import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
 import com.sedmelluq.discord.lavaplayer.track.playback.AudioProcessingContext;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
 import org.dcstacviewsrsrecorder.opus.OpusFiles;
 import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
 import org.gagravarr.opus.OpusAudioData;
-import uk.me.berndporr.iirj.Butterworth;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,15 +25,56 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class LavaFunctions {
     public static final AudioDataFormat SRS_OPUS = new OpusAudioDataFormat(1, 48000, 960);
+    // Enough for the radio effect, which passes nothing above 4500Hz
+    public static final int NARROWBAND_RATE = 16000;
+
+    // Of each format, enough for a few concurrent exports
+    static final int MAX_IDLE_CODECS = 8;
+    // Renders and mixdowns at once, so those in flight fit in the pool. Others wait for one to finish.
+    static final Semaphore RENDERS = new Semaphore(MAX_IDLE_CODECS, true);
+
+    private static final Map<AudioDataFormat, byte[]> SILENT_FRAMES = new ConcurrentHashMap<>();
+
+    static final CodecPool<CodecPool.Key, PacketDecoder> DECODERS = new CodecPool<>(
+            "decoder",
+            MAX_IDLE_CODECS,
+            key -> new PacketDecoder(key.getFormat(), key.getSampleRate()),
+            PacketDecoder::reset,
+            PacketDecoder::close
+    );
+    static final CodecPool<CodecPool.Key, EncodingPipeline> PIPELINES = new CodecPool<>(
+            "pipeline",
+            MAX_IDLE_CODECS,
+            key -> new EncodingPipeline(key.getFormat(), new PcmFormat(key.getChannels(), key.getSampleRate())),
+            EncodingPipeline::reset,
+            EncodingPipeline::close
+    );
+
+    /*
+        Format of a label's packets, discord audio or SRS.
+     */
+    public static AudioDataFormat formatFor(String label) {
+        return label.startsWith("discord") ? StandardAudioDataFormats.DISCORD_OPUS : SRS_OPUS;
+    }
 
     public void toFileWithRadioEffect(
             long start,
@@ -38,13 +82,12 @@ public class LavaFunctions {
             AudioDataFormat format,
             Stream<AudioStore.Packet> s
     ) {
-        Function<ShortBuffer, ShortBuffer> radioEffectFilter = radioEffectFilter();
         File file = decodePaddingWithSilence(
                 s,
                 start,
                 end,
                format,
-                radioEffectFilter::apply,
+                () -> radioEffectFilter()::apply,
                 audioFrameStream -> {
                     File outFile = new File("paddingTest.ogg");
                     try {
@@ -52,10 +95,12 @@ public class LavaFunctions {
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                    OpusFiles.toFile(
-                            outFile,
-                            audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
-                    );
+                    try (audioFrameStream) {
+                        OpusFiles.toFile(
+                                outFile,
+                                audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
+                        );
+                    }
 
                     return outFile;
                 }
@@ -64,162 +109,394 @@ public class LavaFunctions {
 
     /*
         Transforms discontiguous, timestamped audio into an audio stream.
+
+        Gaps of more than 200ms are padded with a cached silent frame of the format rather than by encoding zeros.
+        Zeros are only encoded to finish the frame the gap starts in, then one whole frame so the encoder's state is
+        silent when audio resumes, and for the end of the gap short of a frame. Each transmission after a gap is
+        decoded and filtered afresh, filter supplying a new transform of its decoded samples.
+
+        The decoder and encoding pipeline are borrowed from the pools, and returned when the audio stream is closed.
      */
     public static <T> T decodePaddingWithSilence(
             Stream<AudioStore.Packet> timestampedPackets,
             long start,
             long end,
             AudioDataFormat audioDataFormat, //format should tell us how to pad with silence
-            Consumer<ShortBuffer> filter, //optional transform of the decoded samples
+            Supplier<Consumer<ShortBuffer>> filter, //optional transform of the decoded samples
             Function<Stream<AudioFrame>, T> audioFrameConsumer
     ) {
-        ShortBuffer shortBuffer = ByteBuffer.allocateDirect(4000).order(ByteOrder.nativeOrder()).asShortBuffer();
-        AudioChunkDecoder decoder = audioDataFormat.createDecoder();
+        return decodePaddingWithSilence(timestampedPackets, start, end, audioDataFormat, audioDataFormat.sampleRate, filter, audioFrameConsumer);
+    }
 
-        AllocatingAudioFrameBuffer frameBuffer = new AllocatingAudioFrameBuffer(
-                60 * 1000, //buffer duration in ms
-                audioDataFormat,
-                new AtomicBoolean(false) // I think this is to signal stopping
-        );
-        AudioProcessingContext audioProcessingContext = new AudioProcessingContext(
-                new AudioConfiguration(),
-                frameBuffer,
-                new AudioPlayerOptions(),
-                audioDataFormat //output format
-        );
-        AudioPipeline pipeline = AudioPipelineFactory.create(
-                audioProcessingContext,
-                new PcmFormat(1, 48000)
-        );
+    /*
+        As decodePaddingWithSilence, Opus being decoded and filtered at sampleRate then resampled to the format's
+        rate by the pipeline. At NARROWBAND_RATE the filter has a third of the samples of 48kHz.
+     */
+    public static <T> T decodePaddingWithSilence(
+            Stream<AudioStore.Packet> timestampedPackets,
+            long start,
+            long end,
+            AudioDataFormat audioDataFormat,
+            int sampleRate,
+            Supplier<Consumer<ShortBuffer>> filter,
+            Function<Stream<AudioFrame>, T> audioFrameConsumer
+    ) {
+        CodecPool.Key decoderKey = new CodecPool.Key(audioDataFormat, audioDataFormat.channelCount, sampleRate);
+        CodecPool.Key pipelineKey = new CodecPool.Key(audioDataFormat, 1, sampleRate);
+        AudioFrame silentFrame = new ImmutableAudioFrame(0, silentFrame(audioDataFormat), 100, audioDataFormat);
+        acquireRender();
+        PacketDecoder decoder;
+        EncodingPipeline pipeline;
+        try {
+            decoder = DECODERS.borrow(decoderKey);
+            pipeline = PIPELINES.borrow(pipelineKey);
+        } catch (RuntimeException e) {
+            RENDERS.release();
+            throw e;
+        }
+        ShortBuffer shortBuffer = decoder.samples();
+        AtomicReference<Consumer<ShortBuffer>> transmissionFilter = new AtomicReference<>(filter.get());
 
+        int samplesPerMilli = sampleRate / 1000;
+        int frameSamples = audioDataFormat.chunkSampleCount * sampleRate / audioDataFormat.sampleRate; // decoded samples per frame
         long[] tail = new long[]{ start };
+        long[] pending = new long[]{ 0 }; // samples in the pipeline short of a whole frame
+
+        Function<ShortBuffer, Stream<AudioFrame>> encode = samples -> {
+            pending[0] = (pending[0] + samples.remaining()) % frameSamples;
+            return pipeline.process(samples);
+        };
+        IntFunction<ShortBuffer> zeros = count -> {
+            shortBuffer.clear();
+            for(int i = 0; i < count; i++) {
+                shortBuffer.put((short) 0);
+            }
+            shortBuffer.flip();
+            return shortBuffer;
+        };
+        // Pads from the tail to until if it is more than 200ms away, to deal with timestamp error / jitter
+        LongFunction<Stream<Supplier<Stream<AudioFrame>>>> padding = until -> {
+            long samples = (until - tail[0]) * samplesPerMilli;
+            tail[0] = until;
+            if(samples <= 200 * samplesPerMilli) {
+                return Stream.empty();
+            }
+            int encoded = (int) ((frameSamples - pending[0]) % frameSamples + frameSamples);
+            long cached = (samples - encoded) / frameSamples;
+            int rest = (int) ((samples - encoded) % frameSamples);
+            return Stream.of(
+                    () -> encode.apply(zeros.apply(encoded)),
+                    () -> Stream.generate(() -> silentFrame).limit(cached),
+                    () -> encode.apply(zeros.apply(rest))
+            );
+        };
 
         Stream<AudioFrame> audioFrameStream = timestampedPackets.flatMap(packet -> {
-            Stream<AudioFrame> padding = Stream.generate(() -> {
-                long pad2 = packet.getTimestamp() - tail[0];
-                if(pad2 > 200) { // try to deal with timestamp error / jitter
-                    long samples = (packet.getTimestamp() - tail[0]) * 48;
-                    long applied = 0;
-                    shortBuffer.clear();
-                    while (applied < samples && shortBuffer.hasRemaining()) {
-                        shortBuffer.put((short) 0);
-                        applied++;
-                    }
-                    tail[0] = tail[0] + (applied/48);
-                    try {
-                        shortBuffer.flip();
-                        pipeline.process(shortBuffer);
-                        shortBuffer.clear();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    return Stream.generate(frameBuffer::provide).takeWhile(Objects::nonNull);
-                } else {
-                    tail[0] = packet.getTimestamp();
-                    Stream<AudioFrame> endOfStream = Stream.empty();
-                    return endOfStream;
-                }
-            }).takeWhile(o -> tail[0] < packet.getTimestamp() ).flatMap(s -> s);
-
-            Stream<AudioFrame> decodedStream = Stream.generate(() -> {
-                decoder.decode(packet.getBytes(), shortBuffer);
-                tail[0] = packet.getTimestamp() + (shortBuffer.limit() - shortBuffer.position()) / 48;
-                filter.accept(shortBuffer);
-                try {
-                    pipeline.process(shortBuffer);
-                    return Stream.generate(frameBuffer::provide);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
-                }
-            }).flatMap(s -> s).takeWhile(Objects::nonNull);
+            if(packet.getTimestamp() - tail[0] > 200) {
+                decoder.reset();
+                transmissionFilter.set(filter.get());
+            }
+            Supplier<Stream<AudioFrame>> decoded = () -> {
+                decoder.accept(packet);
+                tail[0] = packet.getTimestamp() + (shortBuffer.limit() - shortBuffer.position()) / samplesPerMilli;
+                transmissionFilter.get().accept(shortBuffer);
+                return encode.apply(shortBuffer);
+            };
+            return Stream.concat(padding.apply(packet.getTimestamp()), Stream.of(decoded)).flatMap(Supplier::get);
+        });
+
+        Stream<AudioFrame> endPadding = Stream.of(end).flatMap(e -> padding.apply(e).flatMap(Supplier::get));
 
-            return Stream.concat(padding, decodedStream);
+        T result = audioFrameConsumer.apply(Stream.concat(audioFrameStream, endPadding).onClose(() -> {
+            try {
+                DECODERS.release(decoderKey, decoder);
+                PIPELINES.release(pipelineKey, pipeline);
+            } finally {
+                RENDERS.release();
+            }
+        }));
+        return result;
+    }
+
+    /*
+        A frame of silence in the format, encoded once.
+     */
+    static byte[] silentFrame(AudioDataFormat format) {
+        return SILENT_FRAMES.computeIfAbsent(format, f -> {
+            AudioChunkEncoder encoder = f.createEncoder(new AudioConfiguration());
+            try {
+                return encoder.encode(ByteBuffer.allocateDirect(f.totalSampleCount() * 2).order(ByteOrder.nativeOrder()).asShortBuffer());
+            } finally {
+                encoder.close();
+            }
         });
+    }
 
-        Stream<AudioFrame> endPadding = Stream.generate(() -> {
-            long pad = end - tail[0];
-            if(pad > 200) { // try to deal with timestamp error / jitter
-                long samples = pad * 48;
-                long applied = 0;
-                shortBuffer.clear();
-                while (applied < samples && shortBuffer.hasRemaining()) {
-                    shortBuffer.put((short) 0);
-                    applied++;
+    /*
+        Mixes the packets of several labels into one audio stream of the given channels, see PcmMixer.
+        The packets are decoded in one pass in timestamp order, packets of other labels being skipped, and encoded
+        by one pipeline. Packets that radioEffect doesn't accept (archived audio) are mixed as they are.
+     */
+    public static <T> T mixPaddingWithSilence(
+            Stream<AudioStore.Packet> timestampedPackets,
+            List<String> labels,
+            long start,
+            long end,
+            int channels,
+            Predicate<AudioStore.Packet> radioEffect,
+            Function<Stream<AudioFrame>, T> audioFrameConsumer
+    ) {
+        AudioDataFormat outputFormat = new OpusAudioDataFormat(channels, 48000, PcmMixer.FRAME_SAMPLES);
+        CodecPool.Key pipelineKey = new CodecPool.Key(outputFormat, channels, 48000);
+        List<CodecPool.Key> decoderKeys = new ArrayList<>();
+        List<PacketDecoder> decoders = new ArrayList<>();
+        List<PacketDecoder> archivedDecoders = new ArrayList<>();
+        List<Function<ShortBuffer, ShortBuffer>> filters = new ArrayList<>();
+        acquireRender();
+        EncodingPipeline pipeline;
+        try {
+            pipeline = PIPELINES.borrow(pipelineKey);
+            for(String label : labels) {
+                AudioDataFormat format = formatFor(label);
+                CodecPool.Key decoderKey = new CodecPool.Key(format, format.channelCount, format.sampleRate);
+                decoderKeys.add(decoderKey);
+                decoders.add(DECODERS.borrow(decoderKey));
+                archivedDecoders.add(DECODERS.borrow(decoderKey));
+                filters.add(radioEffectFilter());
+            }
+        } catch (RuntimeException e) {
+            RENDERS.release();
+            throw e;
+        }
+
+        PcmMixer mixer = new PcmMixer(start, labels.size(), channels, pipeline.frame());
+        long lookahead = 1000 * PcmMixer.SAMPLES_PER_MILLI; // packets can be up to a second out of order
+
+        Stream<AudioFrame> audioFrameStream = timestampedPackets.flatMap(packet -> {
+            int label = labels.indexOf(packet.getLabel());
+            long timestamp = packet.getTimestamp();
+            if(label < 0 || timestamp < start || timestamp >= end) {
+                return Stream.empty();
+            }
+            ShortBuffer shortBuffer;
+            if(radioEffect.test(packet)) {
+                decoders.get(label).accept(packet);
+                shortBuffer = filters.get(label).apply(decoders.get(label).samples());
+            } else {
+                archivedDecoders.get(label).accept(packet);
+                shortBuffer = archivedDecoders.get(label).samples();
+            }
+            int sampleChannels = formatFor(labels.get(label)).channelCount;
+            long at = mixer.placement(label, timestamp);
+            long samples = (shortBuffer.limit() - shortBuffer.position()) / sampleChannels;
+
+            // Make room in the window first, the decoded samples wait in the buffer
+            return Stream.concat(
+                    mixed(mixer, at + samples - PcmMixer.WINDOW_SAMPLES + PcmMixer.FRAME_SAMPLES - 1, pipeline),
+                    Stream.of(label).flatMap(l -> {
+                        mixer.add(l, at, shortBuffer, sampleChannels);
+                        return mixed(mixer, mixer.sampleAt(timestamp) - lookahead, pipeline);
+                    })
+            );
+        });
+
+        // The last frame is padded out to a whole frame
+        Stream<AudioFrame> endPadding = Stream.of(end).flatMap(e -> mixed(mixer, mixer.sampleAt(e) + PcmMixer.FRAME_SAMPLES - 1, pipeline));
+
+        return audioFrameConsumer.apply(Stream.concat(audioFrameStream, endPadding).onClose(() -> {
+            try {
+                for(int label = 0; label < labels.size(); label++) {
+                    DECODERS.release(decoderKeys.get(label), decoders.get(label));
+                    DECODERS.release(decoderKeys.get(label), archivedDecoders.get(label));
                 }
-                tail[0] = tail[0] + (applied/48);
-                try {
-                    shortBuffer.flip();
-                    pipeline.process(shortBuffer);
-                    shortBuffer.clear();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                PIPELINES.release(pipelineKey, pipeline);
+            } finally {
+                RENDERS.release();
+            }
+        }));
+    }
+
+    /*
+        Waits for a render to finish if RENDERS are already running, released once the frames are closed.
+     */
+    private static void acquireRender() {
+        try {
+            RENDERS.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Stream<AudioFrame> mixed(PcmMixer mixer, long until, EncodingPipeline pipeline) {
+        return Stream.generate(() -> {
+            ShortBuffer frame = mixer.mix(until);
+            return frame == null ? null : pipeline.process(frame);
+        }).takeWhile(Objects::nonNull).flatMap(s -> s);
+    }
+
+    /*
+        Decodes a packet into its sample buffer, 120ms (the longest Opus packet) at the decoder's rate. Opus is decoded
+        from the packet's buffer through a reused direct buffer, rather than AudioChunkDecoder which takes a byte[], so
+        packets read in place are never copied to the heap. Opus is decoded at sampleRate, one of 8, 12, 16, 24 or
+        48kHz.
+
+        lavaplayer has no Opus reset, so a decoder is readied for a new transmission by decoding the format's silent
+        frame, which leaves it as though the previous transmission had been followed by silence. This keeps a pooled
+        decoder's native state rather than recreating it per transmission. Two frames of silence replace all the
+        state the next packets are decoded with, and a new decoder is reset too, so every decoder decodes the same
+        packets to the same samples whatever it decoded before.
+     */
+    static class PacketDecoder implements Consumer<AudioStore.Packet> {
+        static final int RESET_FRAMES = 2;
+
+        private final AudioDataFormat format;
+        private final int sampleRate;
+        private final ShortBuffer shortBuffer;
+        private final ByteBuffer encoded = ByteBuffer.allocateDirect(4096);
+        private OpusDecoder opusDecoder;
+        private AudioChunkDecoder chunkDecoder;
+
+        PacketDecoder(AudioDataFormat format, int sampleRate) {
+            this.format = format;
+            this.sampleRate = sampleRate;
+            this.shortBuffer = ByteBuffer.allocateDirect(120 * sampleRate / 1000 * format.channelCount * 2)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+            open();
+            reset();
+        }
+
+        @Override
+        public void accept(AudioStore.Packet packet) {
+            if(opusDecoder != null) {
+                encoded.clear();
+                encoded.put(packet.getBuffer());
+                encoded.flip();
+                opusDecoder.decode(encoded, shortBuffer);
+            } else {
+                chunkDecoder.decode(packet.getBytes(), shortBuffer);
+            }
+        }
+
+        /*
+            The samples of the last packet decoded.
+         */
+        ShortBuffer samples() {
+            return shortBuffer;
+        }
+
+        /*
+            Starts afresh, as for a new transmission. The sample buffer is left empty.
+         */
+        void reset() {
+            if(opusDecoder != null) {
+                byte[] silence = silentFrame(format);
+                for(int i = 0; i < RESET_FRAMES; i++) {
+                    encoded.clear();
+                    encoded.put(silence);
+                    encoded.flip();
+                    opusDecoder.decode(encoded, shortBuffer);
                 }
-                return Stream.generate(frameBuffer::provide).takeWhile(Objects::nonNull);
             } else {
-                tail[0] = end;
-                Stream<AudioFrame> endOfStream = Stream.empty();
-                return endOfStream;
+                close();
+                open();
             }
-        }).takeWhile(o -> tail[0] < end ).flatMap(s -> s);
+            shortBuffer.clear().limit(0);
+        }
 
-        T result = audioFrameConsumer.apply(Stream.concat(audioFrameStream, endPadding));
-        return result;
+        void close() {
+            if(opusDecoder != null) {
+                opusDecoder.close();
+            } else {
+                chunkDecoder.close();
+            }
+        }
+
+        private void open() {
+            if(format instanceof OpusAudioDataFormat) {
+                opusDecoder = new OpusDecoder(sampleRate, format.channelCount);
+            } else {
+                chunkDecoder = format.createDecoder();
+            }
+        }
     }
 
-    //https://github.com/ciribob/DCS-SimpleRadioStandalone/blob/master/DCS-SR-Client/Audio/Providers/RadioFilter.cs
-    // IIR (stateful via feedback) filter function
-    public static Function<ShortBuffer, ShortBuffer> radioEffectFilter() {
-        float BOOST = 1.5f;
-        float CLIPPING_MAX = 0.15f;
-        float CLIPPING_MIN = -0.15f;
-        double noiseGain = 0.05;
-
-        //https://en.wikipedia.org/wiki/Butterworth_filter
-        //https://github.com/berndporr/iirj/blob/master/src/main/java/uk/me/berndporr/iirj/Butterworth.java
-        Butterworth bp1 = new Butterworth();
-        {
-            //Configure bandpass
-            int order = 64;
-            double sampleRate = 48000; //Hz
-            double lowCutoff = 560;
-            double highCutoff = 3900;
-            double centerFrequency = (highCutoff + lowCutoff)/2.0;;
-            double widthFrequency = highCutoff - lowCutoff;
-            bp1.bandPass(order,sampleRate, centerFrequency, widthFrequency);
+    /*
+        Encodes PCM of the input format to frames of the output format, resampling if their rates differ.
+
+        Reset for another stream by dropping what's left of the last and replacing the native resampler and Opus
+        encoder, which lavaplayer can't reset in place: the encoder's rate control would otherwise carry over from
+        stream to stream. The frame buffer and sample buffers are kept. So every stream is encoded from the same
+        state, and the same samples to the same bytes, which exports' ETags rely on (see ExportCache.tag).
+     */
+    static class EncodingPipeline {
+        private final AudioDataFormat outputFormat;
+        private final PcmFormat inputFormat;
+        private final AllocatingAudioFrameBuffer frameBuffer;
+        private final AudioProcessingContext context;
+        private AudioPipeline pipeline;
+        // A frame of input samples, for the caller to fill
+        private final ShortBuffer frame;
+
+        EncodingPipeline(AudioDataFormat outputFormat, PcmFormat inputFormat) {
+            this.outputFormat = outputFormat;
+            this.inputFormat = inputFormat;
+            frameBuffer = new AllocatingAudioFrameBuffer(
+                    60 * 1000, //buffer duration in ms
+                    outputFormat,
+                    new AtomicBoolean(false) // I think this is to signal stopping
+            );
+            context = new AudioProcessingContext(new AudioConfiguration(), frameBuffer, new AudioPlayerOptions(), outputFormat);
+            pipeline = AudioPipelineFactory.create(context, inputFormat);
+            int frameSamples = outputFormat.chunkSampleCount * inputFormat.sampleRate / outputFormat.sampleRate;
+            frame = ByteBuffer.allocateDirect(frameSamples * inputFormat.channelCount * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
         }
-        Butterworth bp2 = new Butterworth();
-        {
-            //Configure bandpass
-            int order = 64;
-            double sampleRate = 48000; //Hz
-            double lowCutoff = 100;
-            double highCutoff = 4500;
-            double centerFrequency = (highCutoff + lowCutoff)/2.0;;
-            double widthFrequency = highCutoff - lowCutoff;
-            bp1.bandPass(order,sampleRate, centerFrequency, widthFrequency);
+
+        /*
+            Encodes the samples, returning the frames completed.
+         */
+        Stream<AudioFrame> process(ShortBuffer samples) {
+            try {
+                pipeline.process(samples);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            return Stream.generate(frameBuffer::provide).takeWhile(Objects::nonNull);
         }
 
-        return shortBuffer -> {
-            for(int i = shortBuffer.position(); i < shortBuffer.limit(); i++) {
-                double sample = (double) shortBuffer.get(i);
-                sample = sample / 32768d; //normalise
+        ShortBuffer frame() {
+            return frame;
+        }
 
-                double noise = (Math.random() - 0.5) * 2;
-                sample = sample + (noise * noiseGain);
+        void reset() {
+            pipeline.close();
+            frameBuffer.clear();
+            pipeline = AudioPipelineFactory.create(context, inputFormat);
+        }
 
-                sample = Double.min(sample, CLIPPING_MAX);
-                sample = Double.max(sample, CLIPPING_MIN);
+        void close() {
+            pipeline.close();
+            frameBuffer.clear();
+        }
+    }
 
-                sample = bp1.filter(sample);
-                sample = bp2.filter(sample);
+    /*
+        A radio effect filter, stateful across the buffers of one stream, see RadioEffectFilter.
+     */
+    public static Function<ShortBuffer, ShortBuffer> radioEffectFilter() {
+        return new RadioEffectFilter();
+    }
 
-                sample = sample * BOOST;
-                sample = sample * 32768d; //un-normalise
+    public static Function<ShortBuffer, ShortBuffer> radioEffectFilter(int sampleRate) {
+        return new RadioEffectFilter(sampleRate);
+    }
 
-                shortBuffer.put(i,  (short) sample);
-            }
-            return shortBuffer;
-        };
+    /*
+        With noise from seed, so the same audio is filtered to the same samples.
+     */
+    public static Function<ShortBuffer, ShortBuffer> radioEffectFilter(int sampleRate, int seed) {
+        return new RadioEffectFilter(sampleRate, seed, RadioEffectFilter.NOISE_GAIN);
     }
 }
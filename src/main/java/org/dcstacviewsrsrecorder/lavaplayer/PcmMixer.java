@@ -0,0 +1,127 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/*
+    Mixes the 48kHz audio of several labels into one mono or stereo stream, 20ms at a time.
+
+    Each label's samples are added into a window of WINDOW_SAMPLES past the last frame mixed out, at the label's
+    timestamp or, within JITTER_SAMPLES of it, straight after its previous samples as decodePaddingWithSilence
+    does. Frames are mixed out once no later packet can land in them. In stereo each label is panned to its own
+    position, equal power, from left to right in label order. Samples are summed and clipped.
+ */
+public class PcmMixer {
+    public static final int SAMPLES_PER_MILLI = 48;
+    public static final int FRAME_SAMPLES = 20 * SAMPLES_PER_MILLI;
+    public static final int WINDOW_SAMPLES = 4000 * SAMPLES_PER_MILLI;
+    static final int JITTER_SAMPLES = 200 * SAMPLES_PER_MILLI;
+    static final double MAX_PAN = 0.8;
+
+    private final long start;
+    private final int channels;
+    // Gain of each label in each output channel
+    private final float[][] gains;
+    // Samples of the window, interleaved, indexed by sample modulo WINDOW_SAMPLES
+    private final int[] window;
+    // Sample after each label's last, or Long.MIN_VALUE
+    private final long[] tails;
+    private final ShortBuffer frame;
+    private long position;
+
+    public PcmMixer(long start, int labels, int channels) {
+        this(start, labels, channels, ByteBuffer.allocateDirect(FRAME_SAMPLES * channels * 2).order(ByteOrder.nativeOrder()).asShortBuffer());
+    }
+
+    /*
+        Mixing out into frame, a direct buffer of FRAME_SAMPLES of the channels.
+     */
+    public PcmMixer(long start, int labels, int channels, ShortBuffer frame) {
+        this.start = start;
+        this.channels = channels;
+        this.gains = new float[labels][channels];
+        for(int label = 0; label < labels; label++) {
+            if(channels == 1) {
+                gains[label][0] = 1;
+            } else {
+                double pan = labels == 1 ? 0 : -MAX_PAN + 2 * MAX_PAN * label / (labels - 1);
+                double angle = (pan + 1) * Math.PI / 4;
+                gains[label][0] = (float) Math.cos(angle);
+                gains[label][1] = (float) Math.sin(angle);
+            }
+        }
+        this.window = new int[WINDOW_SAMPLES * channels];
+        this.tails = new long[labels];
+        Arrays.fill(tails, Long.MIN_VALUE);
+        this.frame = frame;
+    }
+
+    /*
+        Sample of the output at timestamp (epoch milli).
+     */
+    public long sampleAt(long timestamp) {
+        return (timestamp - start) * SAMPLES_PER_MILLI;
+    }
+
+    /*
+        Sample at which the label's audio at timestamp starts.
+     */
+    public long placement(int label, long timestamp) {
+        long at = sampleAt(timestamp);
+        long tail = tails[label];
+        return tail == Long.MIN_VALUE || at - tail > JITTER_SAMPLES ? at : tail;
+    }
+
+    /*
+        Adds samples between position and limit at sample at, sampleChannels interleaved channels being averaged.
+        Samples before the last frame mixed out, or beyond the window, are dropped.
+     */
+    public void add(int label, long at, ShortBuffer samples, int sampleChannels) {
+        int count = (samples.limit() - samples.position()) / sampleChannels;
+        float[] gain = gains[label];
+        for(int i = 0; i < count; i++) {
+            long sample = at + i;
+            if(sample < position || sample >= position + WINDOW_SAMPLES) {
+                continue;
+            }
+            int value = 0;
+            for(int c = 0; c < sampleChannels; c++) {
+                value += samples.get(samples.position() + i * sampleChannels + c);
+            }
+            value /= sampleChannels;
+
+            int index = (int) (sample % WINDOW_SAMPLES) * channels;
+            for(int c = 0; c < channels; c++) {
+                window[index + c] += (int) (value * gain[c]);
+            }
+        }
+        tails[label] = at + count;
+    }
+
+    /*
+        The next frame, interleaved, if it ends by sample until, otherwise null. The buffer is reused.
+     */
+    public ShortBuffer mix(long until) {
+        if(position + FRAME_SAMPLES > until) {
+            return null;
+        }
+        frame.clear();
+        for(int i = 0; i < FRAME_SAMPLES; i++) {
+            int index = (int) ((position + i) % WINDOW_SAMPLES) * channels;
+            for(int c = 0; c < channels; c++) {
+                int value = window[index + c];
+                frame.put((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+                window[index + c] = 0;
+            }
+        }
+        position += FRAME_SAMPLES;
+        frame.flip();
+        return frame;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,154 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import uk.me.berndporr.iirj.Biquad;
+import uk.me.berndporr.iirj.Butterworth;
+
+import java.nio.ShortBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/*
+    The SRS radio effect, transforming samples in place: noise, clipping, a band-pass and a boost.
+    https://github.com/ciribob/DCS-SimpleRadioStandalone/blob/master/DCS-SR-Client/Audio/Providers/RadioFilter.cs
+
+    The band-pass is the order 64 Butterworth from 100Hz to 4500Hz that the iirj filter applied (its second band-pass
+    was never configured so passed samples through). Its second order sections are designed once. Samples are
+    filtered a block at a time, four sections per pass so that their recurrences overlap rather than each waiting on
+    the last. The block is double, as rounding to float between passes is both slower and, at this order, off by a
+    few in a sample. Noise comes from a xorshift generator per filter rather than Math.random, shared by every thread.
+
+    The band-pass leaves nothing above 4500Hz, so the effect can run at 16kHz as well as 48kHz for a third of the
+    work. The noise is scaled with the sample rate to put the same noise power in the band.
+ */
+public class RadioEffectFilter implements Function<ShortBuffer, ShortBuffer> {
+    static final float BOOST = 1.5f;
+    static final float CLIPPING_MAX = 0.15f;
+    static final float CLIPPING_MIN = -0.15f;
+    static final float NOISE_GAIN = 0.05f;
+    static final int BLOCK_SAMPLES = 1024;
+
+    // Sections by sample rate: b0, b1, b2, a1, a2 of each, padded with pass through sections to a multiple of four
+    private static final Map<Integer, double[]> SECTIONS = new ConcurrentHashMap<>();
+
+    private final double[] sections;
+    // Transposed direct form II state, two per section
+    private final double[] state;
+    private final double[] block = new double[BLOCK_SAMPLES];
+    private final float noiseGain;
+    private int random;
+
+    public RadioEffectFilter() {
+        this(48000);
+    }
+
+    public RadioEffectFilter(int sampleRate) {
+        this(sampleRate, ThreadLocalRandom.current().nextInt(), NOISE_GAIN);
+    }
+
+    RadioEffectFilter(int sampleRate, int seed, float noiseGain) {
+        this.sections = SECTIONS.computeIfAbsent(sampleRate, rate -> design(64, rate, 100, 4500));
+        this.state = new double[sections.length / 5 * 2];
+        this.random = seed == 0 ? 1 : seed;
+        this.noiseGain = noiseGain * (float) Math.sqrt(sampleRate / 48000.0);
+    }
+
+    @Override
+    public ShortBuffer apply(ShortBuffer shortBuffer) {
+        for(int from = shortBuffer.position(); from < shortBuffer.limit(); from += BLOCK_SAMPLES) {
+            int count = Math.min(BLOCK_SAMPLES, shortBuffer.limit() - from);
+            for(int i = 0; i < count; i++) {
+                float sample = shortBuffer.get(from + i) / 32768f + noise() * noiseGain;
+                block[i] = Math.max(CLIPPING_MIN, Math.min(CLIPPING_MAX, sample));
+            }
+            for(int section = 0; section < sections.length / 5; section += 4) {
+                filter(section, count);
+            }
+            for(int i = 0; i < count; i++) {
+                shortBuffer.put(from + i, (short) (block[i] * BOOST * 32768f));
+            }
+        }
+        return shortBuffer;
+    }
+
+    /*
+        Uniform in [-1, 1).
+     */
+    private float noise() {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random * (1f / 2147483648f);
+    }
+
+    /*
+        Runs four sections from section over the first count samples of the block.
+     */
+    private void filter(int section, int count) {
+        double[] c = sections;
+        int i0 = section * 5, i1 = i0 + 5, i2 = i1 + 5, i3 = i2 + 5;
+        double b00 = c[i0], b01 = c[i0 + 1], b02 = c[i0 + 2], a01 = c[i0 + 3], a02 = c[i0 + 4];
+        double b10 = c[i1], b11 = c[i1 + 1], b12 = c[i1 + 2], a11 = c[i1 + 3], a12 = c[i1 + 4];
+        double b20 = c[i2], b21 = c[i2 + 1], b22 = c[i2 + 2], a21 = c[i2 + 3], a22 = c[i2 + 4];
+        double b30 = c[i3], b31 = c[i3 + 1], b32 = c[i3 + 2], a31 = c[i3 + 3], a32 = c[i3 + 4];
+        int s = section * 2;
+        double z01 = state[s], z02 = state[s + 1], z11 = state[s + 2], z12 = state[s + 3];
+        double z21 = state[s + 4], z22 = state[s + 5], z31 = state[s + 6], z32 = state[s + 7];
+
+        for(int i = 0; i < count; i++) {
+            double x = block[i];
+            double y = b00 * x + z01;
+            z01 = b01 * x - a01 * y + z02;
+            z02 = b02 * x - a02 * y;
+            x = y;
+            y = b10 * x + z11;
+            z11 = b11 * x - a11 * y + z12;
+            z12 = b12 * x - a12 * y;
+            x = y;
+            y = b20 * x + z21;
+            z21 = b21 * x - a21 * y + z22;
+            z22 = b22 * x - a22 * y;
+            x = y;
+            y = b30 * x + z31;
+            z31 = b31 * x - a31 * y + z32;
+            z32 = b32 * x - a32 * y;
+            block[i] = y;
+        }
+
+        state[s] = z01;
+        state[s + 1] = z02;
+        state[s + 2] = z11;
+        state[s + 3] = z12;
+        state[s + 4] = z21;
+        state[s + 5] = z22;
+        state[s + 6] = z31;
+        state[s + 7] = z32;
+    }
+
+    /*
+        Second order sections of a Butterworth band-pass, normalised by a0.
+     */
+    static double[] design(int order, double sampleRate, double lowCutoff, double highCutoff) {
+        Butterworth butterworth = new Butterworth();
+        butterworth.bandPass(order, sampleRate, (highCutoff + lowCutoff) / 2.0, highCutoff - lowCutoff);
+
+        int sections = butterworth.getNumBiquads();
+        double[] coefficients = new double[(sections + 3) / 4 * 4 * 5];
+        for(int section = 0; section < coefficients.length / 5; section++) {
+            int i = section * 5;
+            if(section < sections) {
+                Biquad biquad = butterworth.getBiquad(section);
+                double a0 = biquad.getA0();
+                coefficients[i] = biquad.getB0() / a0;
+                coefficients[i + 1] = biquad.getB1() / a0;
+                coefficients[i + 2] = biquad.getB2() / a0;
+                coefficients[i + 3] = biquad.getA1() / a0;
+                coefficients[i + 4] = biquad.getA2() / a0;
+            } else {
+                coefficients[i] = 1;
+            }
+        }
+        return coefficients;
+    }
+}
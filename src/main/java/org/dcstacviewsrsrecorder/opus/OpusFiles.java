@@ -10,6 +10,7 @@ import org.gagravarr.opus.OpusTags;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Spliterator;
 import java.util.Spliterators;
@@ -18,6 +19,8 @@ import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class OpusFiles {
+    // Rather than a random serial number, so the same audio is always written to the same bytes
+    static final int SERIAL_NUMBER = 1;
 
     public static void toFile(File file, Stream<OpusAudioData> audioDataStream) {
         OpusInfo info = new OpusInfo();
@@ -29,11 +32,26 @@ public class OpusFiles {
     }
 
     public static void toFile(File file, OpusInfo info, OpusTags tags, Stream<OpusAudioData> audioDataStream) {
-        try (
-                FileOutputStream fileOutputStream = new FileOutputStream(file, false);
-                OggFile oggFile = new OggFile(fileOutputStream)
-        ) {
-            OggPacketWriter w = oggFile.getPacketWriter();
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file, false)) {
+            toOutputStream(fileOutputStream, info, tags, audioDataStream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void toOutputStream(OutputStream outputStream, Stream<OpusAudioData> audioDataStream) {
+        OpusInfo info = new OpusInfo();
+        info.setNumChannels(1);
+        info.setSampleRate(48000);
+        toOutputStream(outputStream, info, new OpusTags(), audioDataStream);
+    }
+
+    /*
+        Writes each frame as its own page as it is produced, so the output can be read while it is written.
+     */
+    public static void toOutputStream(OutputStream outputStream, OpusInfo info, OpusTags tags, Stream<OpusAudioData> audioDataStream) {
+        try (OggFile oggFile = new OggFile(outputStream)) {
+            OggPacketWriter w = oggFile.getPacketWriter(SERIAL_NUMBER);
             w.bufferPacket(info.write(), true);
             w.bufferPacket(tags.write(), true);
 
@@ -0,0 +1,50 @@
+package org.dcstacviewsrsrecorder.opus;
+
+import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.gagravarr.opus.OpusAudioData;
+
+import java.util.stream.Stream;
+
+/*
+    Stored Opus packets as an audio stream without decoding them: the packets as they are, padded with silent
+    frames wherever there was no audio, so the stream keeps time from start until end. The same 200ms of timestamp
+    error is tolerated as by LavaFunctions.decodePaddingWithSilence, and a packet's duration is read from its TOC.
+ */
+public class OpusRemux {
+    static final long JITTER_MILLIS = 200;
+    static final int SILENCE_SAMPLES = 960;
+
+    public static Stream<OpusAudioData> padWithSilence(Stream<AudioStore.Packet> timestampedPackets, long start, long end, int channels) {
+        byte[] silence = OpusToc.silence(channels);
+        // Samples written since start, so durations are exact whatever the packet sizes
+        long[] tail = new long[]{ 0 };
+
+        Stream<OpusAudioData> frames = timestampedPackets.flatMap(packet -> {
+            long at = (packet.getTimestamp() - start) * 48;
+            Stream<OpusAudioData> padding = silence(silence, tail, at);
+            return Stream.concat(padding, Stream.of(packet).map(p -> {
+                byte[] bytes = p.getBytes();
+                tail[0] = tail[0] + OpusToc.samples(bytes);
+                return new OpusAudioData(bytes);
+            }));
+        });
+
+        Stream<OpusAudioData> endPadding = Stream.of(end).flatMap(e -> silence(silence, tail, (e - start) * 48));
+        return Stream.concat(frames, endPadding);
+    }
+
+    /*
+        Silent frames from tail up to sample until, if that is a gap rather than jitter.
+     */
+    private static Stream<OpusAudioData> silence(byte[] silence, long[] tail, long until) {
+        if(until - tail[0] <= JITTER_MILLIS * 48) {
+            return Stream.empty();
+        }
+        return Stream.generate(() -> new OpusAudioData(silence))
+                .takeWhile(frame -> tail[0] + SILENCE_SAMPLES <= until)
+                .map(frame -> {
+                    tail[0] = tail[0] + SILENCE_SAMPLES;
+                    return frame;
+                });
+    }
+}
@@ -0,0 +1,66 @@
+package org.dcstacviewsrsrecorder.opus;
+
+/*
+    Reads the table of contents byte that starts every Opus packet, RFC 6716 section 3.1, for the duration of a
+    packet without decoding it.
+ */
+public class OpusToc {
+    public static final int SAMPLE_RATE = 48000;
+
+    // Frame sizes in 48kHz samples by configuration: SILK 10, 20, 40, 60ms, hybrid 10, 20ms, CELT 2.5, 5, 10, 20ms
+    private static final int[] FRAME_SAMPLES = new int[32];
+    static {
+        for(int config = 0; config < 32; config++) {
+            if(config < 12) {
+                FRAME_SAMPLES[config] = new int[]{ 480, 960, 1920, 2880 }[config % 4];
+            } else if(config < 16) {
+                FRAME_SAMPLES[config] = new int[]{ 480, 960 }[config % 2];
+            } else {
+                FRAME_SAMPLES[config] = new int[]{ 120, 240, 480, 960 }[config % 4];
+            }
+        }
+    }
+
+    /*
+        Samples per channel of a frame of the packet starting with toc.
+     */
+    public static int frameSamples(byte toc) {
+        return FRAME_SAMPLES[(toc & 0xFF) >> 3];
+    }
+
+    /*
+        Frames in the packet, 0 if it is malformed.
+     */
+    public static int frameCount(byte[] packet) {
+        if(packet.length == 0) {
+            return 0;
+        }
+        switch (packet[0] & 0x3) {
+            case 0:
+                return 1;
+            case 1:
+            case 2:
+                return 2;
+            default:
+                return packet.length < 2 ? 0 : packet[1] & 0x3F;
+        }
+    }
+
+    /*
+        Samples per channel of the packet at 48kHz.
+     */
+    public static int samples(byte[] packet) {
+        return packet.length == 0 ? 0 : frameCount(packet) * frameSamples(packet[0]);
+    }
+
+    public static boolean isStereo(byte toc) {
+        return (toc & 0x4) != 0;
+    }
+
+    /*
+        A 20ms CELT frame of silence, TOC then an empty range coded frame.
+     */
+    public static byte[] silence(int channels) {
+        return new byte[]{ (byte) (channels == 2 ? 0xFC : 0xF8), (byte) 0xFF, (byte) 0xFE };
+    }
+}
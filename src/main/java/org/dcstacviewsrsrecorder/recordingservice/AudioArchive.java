@@ -0,0 +1,296 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.dcstacviewsrsrecorder.opus.OpusFiles;
+import org.gagravarr.ogg.OggFile;
+import org.gagravarr.ogg.OggPacket;
+import org.gagravarr.ogg.OggPacketReader;
+import org.gagravarr.ogg.OggPacketWriter;
+import org.gagravarr.opus.OpusAudioData;
+import org.gagravarr.opus.OpusInfo;
+import org.gagravarr.opus.OpusTags;
+
+import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Compacted tier of a recording session: audio of one label over a closed packet log segment, already decoded,
+    padded with silence, filtered and encoded to Ogg Opus.
+
+    Each chunk is <segment start>.<label>.ogg with a .ogx offset index beside it:
+    [start:long][end:long] then (millis from start, byte offset of an Ogg page) about every INDEX_INTERVAL_MILLIS,
+    so a range is read by seeking to the page before it rather than from the start of the file.
+ */
+public class AudioArchive {
+    static final long INDEX_INTERVAL_MILLIS = 1000;
+    static final int INDEX_HEADER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 16;
+
+    private static final String AUDIO_SUFFIX = ".ogg";
+    private static final String INDEX_SUFFIX = ".ogx";
+
+    private final Path dir;
+
+    public AudioArchive(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /*
+        Writes the frames of a label from start until end, starting at start. The chunk only appears once complete.
+     */
+    public void write(long start, long end, String label, int channels, Stream<OpusAudioData> frames) {
+        Path audioFile = dir.resolve(fileName(start, label, AUDIO_SUFFIX));
+        Path indexFile = dir.resolve(fileName(start, label, INDEX_SUFFIX));
+        Path audioTemp = audioFile.resolveSibling(audioFile.getFileName() + ".tmp");
+        Path indexTemp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_BYTES + INDEX_ENTRY_BYTES * (int) ((end - start) / INDEX_INTERVAL_MILLIS + 2));
+        index.putLong(start).putLong(end);
+        try {
+            Files.createDirectories(dir);
+            try (
+                    CountingOutputStream out = new CountingOutputStream(Files.newOutputStream(audioTemp));
+                    OggFile oggFile = new OggFile(out)
+            ) {
+                OpusInfo info = new OpusInfo();
+                info.setNumChannels(channels);
+                info.setSampleRate(48000);
+                OggPacketWriter w = oggFile.getPacketWriter();
+                w.bufferPacket(info.write(), true);
+                w.bufferPacket(new OpusTags().write(), true);
+
+                long[] totalSamples = new long[]{0};
+                long[] nextIndex = new long[]{0};
+                frames.filter(f -> f.getData().length > 0).forEach(frame -> {
+                    try {
+                        long millis = totalSamples[0] / 48;
+                        if(millis >= nextIndex[0] && index.remaining() >= INDEX_ENTRY_BYTES) {
+                            w.flush(); // so the next packet starts a page
+                            index.putLong(millis).putLong(out.getCount());
+                            nextIndex[0] = millis + INDEX_INTERVAL_MILLIS;
+                        }
+                        totalSamples[0] = totalSamples[0] + frame.getNumberOfSamples();
+                        w.setGranulePosition(totalSamples[0]);
+                        w.bufferPacket(frame.write(), false);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                w.flush();
+            }
+
+            index.flip();
+            try(FileChannel channel = FileChannel.open(indexTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while(index.hasRemaining()) {
+                    channel.write(index);
+                }
+                channel.force(false);
+            }
+
+            // The index is the chunk's marker, so the audio goes first
+            Files.move(audioTemp, audioFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(indexTemp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Chunks of the label overlapping [from, until), in time order.
+     */
+    public List<Chunk> chunks(String label, long from, long until) {
+        String suffix = "." + URLEncoder.encode(label, StandardCharsets.UTF_8) + INDEX_SUFFIX;
+        if(!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Chunk> chunks = new ArrayList<>();
+            for(Path indexFile : files.filter(p -> p.getFileName().toString().endsWith(suffix)).collect(Collectors.toList())) {
+                Chunk chunk = Chunk.read(indexFile, label);
+                if(chunk.start < until && chunk.end > from) {
+                    chunks.add(chunk);
+                }
+            }
+            chunks.sort(Comparator.comparingLong(Chunk::getStart));
+            return chunks;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Deletes the chunks of every label starting at start, returning the bytes freed.
+     */
+    public long delete(long start) {
+        String prefix = PacketLog.toFileName(start).replace(".seg", ".");
+        if(!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            long freed = 0;
+            // Indexes first, so a chunk never appears without its audio
+            List<Path> chunkFiles = files.filter(p -> p.getFileName().toString().startsWith(prefix))
+                    .sorted(Comparator.comparing(p -> !p.getFileName().toString().endsWith(INDEX_SUFFIX)))
+                    .collect(Collectors.toList());
+            for(Path file : chunkFiles) {
+                freed += Files.size(file);
+                Files.delete(file);
+            }
+            return freed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Frames of the chunk from about from until until, starting from the indexed page at or before from.
+        The stream must be closed.
+     */
+    public Stream<OpusAudioData> read(Chunk chunk, long from, long until) {
+        return packets(chunk, from, until).map(packet -> new OpusAudioData(packet.getBytes()));
+    }
+
+    /*
+        As read, each frame as a packet of the chunk's label timestamped from its position in the chunk.
+     */
+    public Stream<AudioStore.Packet> packets(Chunk chunk, long from, long until) {
+        try {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(fileName(chunk.start, chunk.label, INDEX_SUFFIX))));
+            long millis = 0;
+            long offset = -1;
+            for(int i = INDEX_HEADER_BYTES; i + INDEX_ENTRY_BYTES <= index.limit(); i += INDEX_ENTRY_BYTES) {
+                if(chunk.start + index.getLong(i) > from && offset >= 0) {
+                    break;
+                }
+                millis = index.getLong(i);
+                offset = index.getLong(i + 8);
+            }
+            if(offset < 0) {
+                return Stream.empty();
+            }
+
+            FileChannel channel = FileChannel.open(dir.resolve(fileName(chunk.start, chunk.label, AUDIO_SUFFIX)), StandardOpenOption.READ);
+            channel.position(offset);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            OggPacketReader reader = new OggPacketReader(in);
+
+            long[] samples = new long[]{ millis * 48 };
+            return OpusFiles.toStream(() -> {
+                        try {
+                            OggPacket packet = reader.getNextPacket();
+                            return packet == null ? null : new OpusAudioData(packet.getData());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .takeWhile(frame -> chunk.start + samples[0] / 48 < until)
+                    .<AudioStore.Packet>map(frame -> {
+                        long time = chunk.start + samples[0] / 48;
+                        samples[0] = samples[0] + frame.getNumberOfSamples();
+                        return time >= from ? new ArchivedPacket(time, frame.getData(), chunk.label) : null;
+                    })
+                    .filter(Objects::nonNull)
+                    .onClose(() -> {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String fileName(long start, String label, String suffix) {
+        return PacketLog.toFileName(start).replace(".seg", "") + "." + URLEncoder.encode(label, StandardCharsets.UTF_8) + suffix;
+    }
+
+    public static class Chunk {
+        private final long start;
+        private final long end;
+        private final String label;
+
+        Chunk(long start, long end, String label) {
+            this.start = start;
+            this.end = end;
+            this.label = label;
+        }
+
+        static Chunk read(Path indexFile, String label) throws IOException {
+            try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+                channel.read(header, 0);
+                header.flip();
+                return new Chunk(header.getLong(), header.getLong(), label);
+            }
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /*
+        Audio already padded and filtered, unlike the packets of the packet log.
+     */
+    public static class ArchivedPacket extends AudioStore.SimplePacket {
+        ArchivedPacket(long timestamp, byte[] bytes, String label) {
+            super(timestamp, bytes, label);
+        }
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
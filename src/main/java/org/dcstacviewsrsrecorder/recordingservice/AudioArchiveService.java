@@ -0,0 +1,244 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions;
+import org.dcstacviewsrsrecorder.opus.OpusFiles;
+import org.dcstacviewsrsrecorder.opus.OpusRemux;
+import org.gagravarr.opus.OpusAudioData;
+import org.gagravarr.opus.OpusInfo;
+import org.gagravarr.opus.OpusTags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.decodePaddingWithSilence;
+import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.mixPaddingWithSilence;
+import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.radioEffectFilter;
+
+/*
+    Moves closed hours of audio from the packet log to the AudioArchive, and exports audio from both.
+
+    Compaction renders each label of a closed segment exactly as a download would (padded with silence, radio effect)
+    and then deletes the segment's packets. Exports read archived ranges straight from the archive and only decode
+    what is still in the packet log.
+ */
+@Service
+public class AudioArchiveService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // Well past the packet log's slack for late packets
+    static final Duration COMPACT_AFTER = Duration.ofMinutes(10);
+
+    @Autowired
+    AudioStore audioStore;
+
+    @Scheduled(initialDelay = 60_000, fixedDelay = 5 * 60_000)
+    public void compactAll() {
+        Instant before = Instant.now().minus(COMPACT_AFTER);
+        for(String key : audioStore.keys()) {
+            try {
+                compact(key, before);
+            } catch (RuntimeException e) {
+                logger.error("Failed to compact '" + key + "'", e);
+            }
+        }
+    }
+
+    public void compact(String key, Instant before) {
+        AudioArchive archive = audioStore.archive(key);
+        for(Interval<Long> segment : audioStore.findCompactable(key, before)) {
+            long start = segment.getStart();
+            long end = segment.getEnd();
+            long began = System.nanoTime();
+
+            List<AudioStore.LabelSummary> labels = audioStore.findLabels(key, Instant.ofEpochMilli(start), Instant.ofEpochMilli(end - 1));
+            for(AudioStore.LabelSummary label : labels) {
+                AudioDataFormat format = LavaFunctions.formatFor(label.getLabel());
+                render(key, label.getLabel(), start, end, 48000, frames -> {
+                    try (frames) {
+                        archive.write(start, end, label.getLabel(), format.channelCount, frames);
+                    }
+                    return null;
+                });
+            }
+            audioStore.compact(key, start);
+
+            logger.info("Compacted " + labels.size() + " labels of '" + key + "' from " + Instant.ofEpochMilli(start)
+                    + " in " + Duration.ofNanos(System.nanoTime() - began).toMillis() + "ms");
+        }
+    }
+
+    /*
+        Writes the audio of a label from from until until to out as Ogg Opus, page by page as it is produced,
+        see ExportCache. Without the radio effect, packets are copied into the Ogg as they were recorded. Narrowband,
+        the radio effect is applied at 16kHz.
+     */
+    public void export(String key, String label, Instant from, Instant until, boolean radioEffect, boolean narrowband, OutputStream out) {
+        OpusInfo info = new OpusInfo();
+        info.setNumChannels(LavaFunctions.formatFor(label).channelCount);
+        info.setSampleRate(48000);
+        try (Stream<OpusAudioData> frames = frames(key, label, from.toEpochMilli(), until.toEpochMilli(), radioEffect, narrowband)) {
+            OpusFiles.toOutputStream(out, info, new OpusTags(), frames);
+        }
+    }
+
+    /*
+        Frames of a label from from until until: archived chunks as they are, the gaps between them decoded
+        from the packet log, or remuxed if there's no radio effect (or silence, if a compacted range had no audio
+        for the label). Archived chunks were rendered with the radio effect. Parts are opened as they are reached,
+        so a rendered part only holds its codecs while it is read.
+     */
+    Stream<OpusAudioData> frames(String key, String label, long from, long until, boolean radioEffect, boolean narrowband) {
+        int sampleRate = narrowband ? LavaFunctions.NARROWBAND_RATE : 48000;
+        AudioArchive archive = audioStore.archive(key);
+        List<Supplier<Stream<OpusAudioData>>> parts = new ArrayList<>();
+        long position = from;
+        for(AudioArchive.Chunk chunk : archive.chunks(label, from, until)) {
+            if(chunk.getStart() > position) {
+                long gapFrom = position;
+                parts.add(() -> radioEffect ? render(key, label, gapFrom, chunk.getStart(), sampleRate, Function.identity()) : remux(key, label, gapFrom, chunk.getStart()));
+            }
+            long start = Math.max(position, chunk.getStart());
+            long end = Math.min(until, chunk.getEnd());
+            parts.add(() -> archive.read(chunk, start, end));
+            position = end;
+        }
+        if(position < until) {
+            long gapFrom = position;
+            parts.add(() -> radioEffect ? render(key, label, gapFrom, until, sampleRate, Function.identity()) : remux(key, label, gapFrom, until));
+        }
+        return parts.stream().flatMap(Supplier::get);
+    }
+
+    private Stream<OpusAudioData> remux(String key, String label, long from, long until) {
+        return audioStore.viewAllForFrequency(key, label, Instant.ofEpochMilli(from), Instant.ofEpochMilli(until - 1), s ->
+                OpusRemux.padWithSilence(s, from, until, LavaFunctions.formatFor(label).channelCount)
+        );
+    }
+
+    /*
+        Writes the audio of several labels from from until until, mixed into one mono or stereo stream, to out as
+        Ogg Opus, see LavaFunctions.mixPaddingWithSilence.
+     */
+    public void mixdown(String key, List<String> labels, Instant from, Instant until, boolean stereo, OutputStream out) {
+        int channels = stereo ? 2 : 1;
+        OpusInfo info = new OpusInfo();
+        info.setNumChannels(channels);
+        info.setSampleRate(48000);
+        try (Stream<AudioStore.Packet> packets = packets(key, labels, from.toEpochMilli(), until.toEpochMilli())) {
+            mixPaddingWithSilence(
+                    packets,
+                    labels,
+                    from.toEpochMilli(),
+                    until.toEpochMilli(),
+                    channels,
+                    packet -> !(packet instanceof AudioArchive.ArchivedPacket),
+                    audioFrameStream -> {
+                        try (audioFrameStream) {
+                            OpusFiles.toOutputStream(out, info, new OpusTags(), audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData())));
+                        }
+                        return null;
+                    }
+            );
+        }
+    }
+
+    /*
+        Packets of every label from from until until in timestamp order: frames of the labels' archived chunks,
+        merged, and the packet log in one pass between them. Compaction archives every label of a segment at once,
+        so the labels' chunks cover the same ranges.
+     */
+    Stream<AudioStore.Packet> packets(String key, List<String> labels, long from, long until) {
+        AudioArchive archive = audioStore.archive(key);
+        TreeMap<Long, Long> archived = new TreeMap<>();
+        Map<Long, List<AudioArchive.Chunk>> chunks = new HashMap<>();
+        for(String label : labels) {
+            for(AudioArchive.Chunk chunk : archive.chunks(label, from, until)) {
+                archived.merge(chunk.getStart(), chunk.getEnd(), Math::max);
+                chunks.computeIfAbsent(chunk.getStart(), s -> new ArrayList<>()).add(chunk);
+            }
+        }
+
+        List<Supplier<Stream<AudioStore.Packet>>> parts = new ArrayList<>();
+        long position = from;
+        for(Map.Entry<Long, Long> range : archived.entrySet()) {
+            long start = Math.max(position, range.getKey());
+            long end = Math.min(until, range.getValue());
+            if(start > position) {
+                long gapFrom = position;
+                parts.add(() -> audioStore.viewAll(key, Instant.ofEpochMilli(gapFrom), Instant.ofEpochMilli(start - 1), Function.identity()));
+            }
+            List<AudioArchive.Chunk> rangeChunks = chunks.get(range.getKey());
+            parts.add(() -> merge(rangeChunks.stream().map(c -> archive.packets(c, start, end)).collect(Collectors.toList())));
+            position = Math.max(position, end);
+        }
+        if(position < until) {
+            long gapFrom = position;
+            parts.add(() -> audioStore.viewAll(key, Instant.ofEpochMilli(gapFrom), Instant.ofEpochMilli(until - 1), Function.identity()));
+        }
+        return parts.stream().flatMap(Supplier::get);
+    }
+
+    /*
+        Merges streams of packets, each in timestamp order, into one.
+     */
+    static Stream<AudioStore.Packet> merge(List<Stream<AudioStore.Packet>> streams) {
+        PriorityQueue<Map.Entry<AudioStore.Packet, Iterator<AudioStore.Packet>>> heads = new PriorityQueue<>(
+                Comparator.comparingLong(e -> e.getKey().getTimestamp())
+        );
+        for(Stream<AudioStore.Packet> stream : streams) {
+            Iterator<AudioStore.Packet> iterator = stream.iterator();
+            if(iterator.hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(iterator.next(), iterator));
+            }
+        }
+        return OpusFiles.<AudioStore.Packet>toStream(() -> {
+            Map.Entry<AudioStore.Packet, Iterator<AudioStore.Packet>> head = heads.poll();
+            if(head == null) {
+                return null;
+            }
+            if(head.getValue().hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(head.getValue().next(), head.getValue()));
+            }
+            return head.getKey();
+        }).onClose(() -> streams.forEach(Stream::close));
+    }
+
+    /*
+        The radio effect's noise is seeded by the start of the range and the transmission, so a range renders to the
+        same samples every time.
+     */
+    private <T> T render(String key, String label, long from, long until, int sampleRate, Function<Stream<OpusAudioData>, T> f) {
+        int[] transmission = new int[]{ 0 };
+        return audioStore.viewAllForFrequency(key, label, Instant.ofEpochMilli(from), Instant.ofEpochMilli(until - 1), s ->
+                decodePaddingWithSilence(
+                        s,
+                        from,
+                        until,
+                        LavaFunctions.formatFor(label),
+                        sampleRate,
+                        () -> radioEffectFilter(sampleRate, 31 * Long.hashCode(from) + transmission[0]++)::apply,
+                        audioFrameStream -> f.apply(audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData())))
+                )
+        );
+    }
+}
@@ -3,142 +3,384 @@ package org.dcstacviewsrsrecorder.recordingservice;
 import org.dcstacviewsrsrecorder.srs.UdpVoicePacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import jetbrains.exodus.entitystore.Entity;
-import jetbrains.exodus.entitystore.EntityIterable;
 import jetbrains.exodus.entitystore.PersistentEntityStore;
 import jetbrains.exodus.entitystore.PersistentEntityStores;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 @Service
 public class AudioStore {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    Cache<String, PersistentEntityStore> stores = Caffeine.newBuilder()
+    // Open packet logs are closed when idle, or when their summaries in memory take more than the budget in total
+    static final Duration IDLE_EXPIRY = Duration.ofMinutes(10);
+    static final long MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    Cache<String, PacketLog> stores = Caffeine.newBuilder()
             .maximumSize(100)
+            .expireAfterAccess(IDLE_EXPIRY)
+            .scheduler(Scheduler.systemScheduler()) // expire idle stores without waiting for other cache activity
+            .executor(Runnable::run) // close synchronously on removal
+            .removalListener((String key, PacketLog packetLog, RemovalCause cause) -> {
+                if(packetLog != null) {
+                    packetLog.close();
+                }
+            })
             .build();
 
-    private PersistentEntityStore entityStore(String key) {
-        // ~/ is needed for linux / AWS environments
-        return stores.get(key, k -> PersistentEntityStores.newInstance("~/data/" + key + "/.audio"));
+    // Packet logs opened and not yet closed, including any just removed from the cache
+    private final Map<String, PacketLog> live = new ConcurrentHashMap<>();
+
+    private final Counter hits = Metrics.counter("recorder.audio.stores.requests", "result", "hit");
+    private final Counter misses = Metrics.counter("recorder.audio.stores.requests", "result", "miss");
+    private final Timer openTimer = Metrics.timer("recorder.audio.stores.reopen");
+
+    private PacketLog packetLog(String key) {
+        PacketLog packetLog = stores.getIfPresent(key);
+        if(packetLog != null) {
+            hits.increment();
+            return packetLog;
+        }
+        misses.increment();
+        return stores.get(key, this::openPacketLog);
     }
 
-    private final ConcurrentLinkedQueue<KeyAndPacket> toSave;
+    /*
+        Runs a change on the key's packet log, reopening it if it was closed since it was looked up.
+     */
+    private <T> T withPacketLog(String key, Function<PacketLog, T> f) {
+        while(true) {
+            try {
+                return f.apply(packetLog(key));
+            } catch (PacketLog.ClosedException e) {
+                logger.debug("Reopening '" + key + "'", e);
+            }
+        }
+    }
 
-    public AudioStore() {
-        toSave = new ConcurrentLinkedQueue<>();
-        new Thread(() ->{
-            while(!Thread.currentThread().isInterrupted()) {
-                KeyAndPacket keyAndPacket = toSave.poll();
-                while (keyAndPacket != null) {
-                    save(
-                            keyAndPacket.getKey(),
-                            keyAndPacket.getPacket()
-                    );
-                    keyAndPacket = toSave.poll();
-                }
+    // ~/ is needed for linux / AWS environments
+    private static final Path DATA_DIR = Path.of("~/data");
+
+    private final Path dataDir;
+
+    private PacketLog openPacketLog(String key) {
+        long began = System.nanoTime();
+
+        // An evicted log may still be closing, never have two open on the same files
+        PacketLog previous = live.get(key);
+        if(previous != null) {
+            previous.close();
+        }
+
+        Path dir = dataDir.resolve(key);
+        Path packets = dir.resolve(".packets");
+        Path legacy = dir.resolve(".audio");
+        if(!Files.exists(packets) && Files.isDirectory(legacy)) {
+            migrate(legacy, packets);
+        }
+        PacketLog packetLog = PacketLog.open(packets);
+        live.put(key, packetLog);
+
+        openTimer.record(Duration.ofNanos(System.nanoTime() - began));
+        return packetLog;
+    }
+
+    /*
+        Closes the least recently used packet logs while the open ones hold more than MEMORY_BUDGET_BYTES.
+        Closing seals their segments, writing the summaries held in memory to disk. Once reopened, a log appends to
+        its last segment again rather than starting a new one.
+     */
+    @Scheduled(fixedDelay = 30_000)
+    public void enforceMemoryBudget() {
+        live.values().removeIf(PacketLog::isClosed);
+
+        long total = memoryBytes();
+        if(total <= MEMORY_BUDGET_BYTES) {
+            return;
+        }
+        Map<String, PacketLog> coldest = stores.policy().eviction()
+                .map(eviction -> eviction.coldest(Integer.MAX_VALUE))
+                .orElse(Map.of());
+        for(Map.Entry<String, PacketLog> entry : coldest.entrySet()) {
+            if(total <= MEMORY_BUDGET_BYTES) {
+                break;
+            }
+            long bytes = entry.getValue().memoryBytes();
+            logger.info("Closing '" + entry.getKey() + "' to free " + bytes + " bytes, " + total + " bytes in use");
+            stores.invalidate(entry.getKey());
+            total -= bytes;
+        }
+    }
+
+    long memoryBytes() {
+        return stores.asMap().values().stream().mapToLong(PacketLog::memoryBytes).sum();
+    }
+
+    /*
+        Copies a Xodus entity store written by earlier versions into a new packet log.
+        The log is built beside the target and moved into place once complete, so an interrupted migration is retried.
+        The Xodus store is left in place.
+     */
+    void migrate(Path legacy, Path packets) {
+        logger.warn("Migrating " + legacy + " to " + packets);
+        Path migrating = packets.resolveSibling(packets.getFileName() + ".migrating");
+        try {
+            deleteRecursively(migrating);
+
+            PersistentEntityStore entityStore = PersistentEntityStores.newInstance(legacy.toString());
+            try (PacketLog packetLog = PacketLog.open(migrating)) {
+                entityStore.executeInReadonlyTransaction(txn -> {
+                    List<Packet> batch = new ArrayList<>();
+                    for(Entity entity : txn.sort("packet", "timestamp", true)) {
+                        EntityPacket packet = new EntityPacket(entity);
+                        batch.add(new SimplePacket(packet.getTimestamp(), packet.getBytes(), packet.getLabel()));
+                        if(batch.size() >= 1000) {
+                            packetLog.append(batch);
+                            batch.clear();
+                        }
+                    }
+                    packetLog.append(batch);
+                });
+            } finally {
+                entityStore.close();
+            }
+
+            Files.move(migrating, packets, StandardCopyOption.ATOMIC_MOVE);
+            logger.warn("Migrated " + legacy);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
+    private static void deleteRecursively(Path path) throws IOException {
+        if(Files.exists(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                for(Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(p);
                 }
             }
-        }).start();
+        }
+    }
+
+    private final GroupCommitWriter<Packet> writer;
+
+    public AudioStore() {
+        this(DATA_DIR);
     }
 
+    /*
+        A store of the packet logs under dataDir, a directory per key.
+     */
+    public AudioStore(Path dataDir) {
+        this.dataDir = dataDir;
+        // A batch per store every quarter second, or sooner at ~10 seconds of a single frequency
+        writer = new GroupCommitWriter<>(
+                10_000,
+                250,
+                Duration.ofMillis(250),
+                (key, batch) -> withPacketLog(key, packetLog -> {
+                    packetLog.append(batch);
+                    return null;
+                })
+        );
+
+        Metrics.gauge("recorder.audio.stores.open", stores, Cache::estimatedSize);
+        Metrics.gauge("recorder.audio.stores.memory", this, AudioStore::memoryBytes);
+    }
+
+    /*
+        Queues the packet for the next group commit without waiting on disk, safe to call from network threads.
+     */
     public void saveAsync(String key, Packet packet) {
-        toSave.offer(new KeyAndPacket(key, packet));
+        writer.offer(key, packet);
+    }
+
+    public void saveAsync(String key, UdpVoicePacket udpVoicePacket) {
+        packetOf(udpVoicePacket).ifPresent(packet -> saveAsync(key, packet));
+    }
+
+    /*
+        Flushes queued packets and closes the open stores.
+     */
+    @PreDestroy
+    public void close() {
+        writer.close();
+        stores.invalidateAll();
+        stores.cleanUp();
     }
 
     public void save(String key, Packet packet) {
-        entityStore(key).executeInTransaction(txn -> {
-            Entity packetEntity = txn.newEntity("packet");
-            packetEntity.setProperty("timestamp", packet.getTimestamp());
-            // discord channel name or srs frequency
-            packetEntity.setProperty("label", packet.getLabel());
-            packetEntity.setBlob("bytes", new ByteArrayInputStream(packet.getBytes()));
+        // label is the discord channel name or srs frequency
+        withPacketLog(key, packetLog -> {
+            packetLog.append(packet);
+            return null;
         });
     }
 
     public void save(String key, UdpVoicePacket udpVoicePacket) {
-        udpVoicePacket.frequencies().forEach(frequency -> save(key, new SimplePacket(
-                Instant.now().toEpochMilli(),
-                udpVoicePacket.audioData(),
-                frequency.getFrequency() + ""
-        )));
+        packetOf(udpVoicePacket).ifPresent(packet -> save(key, packet));
+    }
+
+    /*
+        One packet for all the frequencies of a transmission, stored once, timed from when it was received.
+     */
+    static Optional<Packet> packetOf(UdpVoicePacket udpVoicePacket) {
+        List<String> labels = udpVoicePacket.frequencies().stream()
+                .map(frequency -> frequency.getFrequency() + "")
+                .distinct()
+                .collect(Collectors.toList());
+        if(labels.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new SimplePacket(udpVoicePacket.getReceivedAt(), udpVoicePacket.audioData(), labels));
     }
 
     public <T> T findAll(String key, Function<Stream<Packet>, T> f) {
-        return entityStore(key).computeInReadonlyTransaction(txn -> {
-            EntityIterable i = txn.getAll("packet");
-            return f.apply(
-                    StreamSupport.stream(i.spliterator(), false)
-                            .map(EntityPacket::new)
-            );
-        });
+        return f.apply(packetLog(key).read(Long.MIN_VALUE, Long.MAX_VALUE));
     }
 
     public <T> T findAllForFrequency(String key, String label, Function<Stream<Packet>, T> f) {
-        return entityStore(key).computeInReadonlyTransaction(txn -> {
-            EntityIterable i = txn.find("packet", "label", label);
-            return f.apply(
-                    StreamSupport.stream(i.spliterator(), false)
-                            .map(EntityPacket::new)
-            );
-        });
+        return f.apply(packetLog(key).readAll(label));
     }
 
     public <T> T findAll(String key, Instant from, Instant until, Function<Stream<Packet>, T> f) {
-        return entityStore(key).computeInReadonlyTransaction(txn -> {
-            EntityIterable i = txn.find("packet", "timestamp", from.toEpochMilli(), until.toEpochMilli());
-            return f.apply(
-                    StreamSupport.stream(i.spliterator(), false)
-                            .map(EntityPacket::new)
-            );
-        });
+        return f.apply(packetLog(key).read(from.toEpochMilli(), until.toEpochMilli()));
     }
 
     public <T> T findAllForFrequency(String key, String label, Instant from, Instant until, Function<Stream<Packet>, T> f) {
-        return entityStore(key).computeInReadonlyTransaction(txn -> {
-            EntityIterable i = txn.find("packet", "label", label).intersect(
-                    txn.find("packet", "timestamp", from.toEpochMilli(), until.toEpochMilli())
-            );
-            return f.apply(
-                    StreamSupport.stream(i.spliterator(), false)
-                            .map(EntityPacket::new)
-            );
-        });
+        return f.apply(packetLog(key).read(from.toEpochMilli(), until.toEpochMilli(), label));
     }
 
-    static class KeyAndPacket {
-        private final String key;
-        private final Packet packet;
+    /*
+        As findAllForFrequency, but packets are read in place and one packet instance is reused for the whole stream,
+        so a packet is only valid until the stream advances. For exports, so reading doesn't copy every packet; what an
+        export allocates as a whole, see ExportBenchmark.
+     */
+    public <T> T viewAllForFrequency(String key, String label, Instant from, Instant until, Function<Stream<Packet>, T> f) {
+        return f.apply(packetLog(key).view(from.toEpochMilli(), until.toEpochMilli(), label));
+    }
 
-        public KeyAndPacket(String key, Packet packet) {
-            this.key = key;
-            this.packet = packet;
-        }
+    /*
+        As viewAllForFrequency, for every label in timestamp order.
+     */
+    public <T> T viewAll(String key, Instant from, Instant until, Function<Stream<Packet>, T> f) {
+        return f.apply(packetLog(key).view(from.toEpochMilli(), until.toEpochMilli(), null));
+    }
 
-        public String getKey() {
-            return key;
-        }
+    /*
+        Transmissions overlapping [from, until], maintained as packets are saved rather than read from every packet.
+     */
+    public List<Transmission> findTransmissions(String key, Instant from, Instant until) {
+        return packetLog(key).transmissions(from.toEpochMilli(), until.toEpochMilli());
+    }
+
+    /*
+        Labels with packets between from and until, from the catalog maintained as packets are saved.
+     */
+    public List<LabelSummary> findLabels(String key, Instant from, Instant until) {
+        return packetLog(key).labels(from.toEpochMilli(), until.toEpochMilli());
+    }
 
-        public Packet getPacket() {
-            return packet;
+    /*
+        Keys of the stores on disk.
+     */
+    public List<String> keys() {
+        if(!Files.isDirectory(dataDir)) {
+            return List.of();
         }
+        try (Stream<Path> dirs = Files.list(dataDir)) {
+            return dirs.filter(d -> Files.isDirectory(d.resolve(".packets")))
+                    .map(d -> d.getFileName().toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Bytes on disk of every store.
+     */
+    public long diskUsage() {
+        return RetentionService.sizeOf(dataDir);
+    }
+
+    /*
+        Compacted tier of the store, see AudioArchive.
+     */
+    public AudioArchive archive(String key) {
+        return new AudioArchive(dataDir.resolve(key).resolve(".archive"));
+    }
+
+    /*
+        Closed ranges of the store not yet compacted into the archive, see PacketLog.compactable.
+     */
+    public List<Interval<Long>> findCompactable(String key, Instant before) {
+        return packetLog(key).compactable(before.toEpochMilli());
+    }
+
+    /*
+        Deletes the packets of a range once it has been written to the archive, keeping its summaries.
+     */
+    public void compact(String key, long start) {
+        withPacketLog(key, packetLog -> {
+            packetLog.compact(start);
+            return null;
+        });
+    }
+
+    /*
+        Closed ranges of the store that ended by before, whether compacted or not.
+     */
+    public List<Interval<Long>> findExpirable(String key, Instant before) {
+        return packetLog(key).expirable(before.toEpochMilli());
+    }
+
+    /*
+        Deletes a closed range from the packet log and the archive, returning the bytes freed.
+     */
+    public long delete(String key, long start) {
+        return withPacketLog(key, packetLog -> packetLog.delete(start)) + archive(key).delete(start);
+    }
+
+    /*
+        Rebuilds indexes, transmission summaries and the label catalog from the stored packets.
+     */
+    public void rebuildSummaries(String key) {
+        withPacketLog(key, packetLog -> {
+            packetLog.rebuildSummaries();
+            return null;
+        });
     }
 
     public interface Packet {
@@ -146,17 +388,38 @@ public class AudioStore {
         long getTimestamp();
         byte[] getBytes();
         String getLabel();
+
+        /*
+            Every label the packet was recorded under, getLabel being the first. A store holds the bytes once.
+         */
+        default List<String> getLabels() {
+            return List.of(getLabel());
+        }
+
+        /*
+            The bytes between position and limit. Packets read in place return a view of the store rather than a copy.
+         */
+        default ByteBuffer getBuffer() {
+            return ByteBuffer.wrap(getBytes());
+        }
     }
 
     public static class SimplePacket implements Packet {
         private final long timestamp;
         private final byte[] bytes;
-        private final String label;
+        private final List<String> labels;
 
         public SimplePacket(long timestamp, byte[] bytes, String label) {
+            this(timestamp, bytes, List.of(label));
+        }
+
+        public SimplePacket(long timestamp, byte[] bytes, List<String> labels) {
+            if(labels.isEmpty()) {
+                throw new IllegalArgumentException("A packet needs a label");
+            }
             this.timestamp = timestamp;
             this.bytes = bytes;
-            this.label = label;
+            this.labels = List.copyOf(labels);
         }
 
         @Override
@@ -171,19 +434,109 @@ public class AudioStore {
 
         @Override
         public String getLabel() {
-            return label;
+            return labels.get(0);
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return labels;
         }
 
         @Override
         public String toString() {
             return "SimplePacket{" +
                     "timestamp=" + timestamp +
-                    ", label='" + label + '\'' +
+                    ", labels=" + labels +
                     ", bytes=" + bytesToHex(bytes) +
                     '}';
         }
     }
 
+    public static class Transmission {
+        // Epoch milli
+        private final long start;
+        private final long end;
+        private final String label;
+        private final int packetCount;
+
+        public Transmission(long start, long end, String label, int packetCount) {
+            this.start = start;
+            this.end = end;
+            this.label = label;
+            this.packetCount = packetCount;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getPacketCount() {
+            return packetCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Transmission{" +
+                    "start=" + start +
+                    ", end=" + end +
+                    ", label='" + label + '\'' +
+                    ", packetCount=" + packetCount +
+                    '}';
+        }
+    }
+
+    public static class LabelSummary {
+        private final String label;
+        // Epoch milli
+        private final long first;
+        private final long last;
+        private final long packetCount;
+
+        public LabelSummary(String label, long first, long last, long packetCount) {
+            this.label = label;
+            this.first = first;
+            this.last = last;
+            this.packetCount = packetCount;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getFirst() {
+            return first;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public long getPacketCount() {
+            return packetCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LabelSummary{" +
+                    "label='" + label + '\'' +
+                    ", first=" + first +
+                    ", last=" + last +
+                    ", packetCount=" + packetCount +
+                    '}';
+        }
+    }
+
+    /*
+        Packet entity in the Xodus store used by earlier versions, read when migrating.
+     */
     static class EntityPacket implements Packet {
         private final Entity entity;
 
@@ -0,0 +1,544 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+    Rendered audio exports on disk, keyed by (session, label, from, until, radio effect), so repeated downloads of a range are
+    served from a file rather than decoded, filtered and encoded again.
+
+    Each export records the version of the range it was rendered from, taken from the label's transmission
+    summaries, and is rendered again once packets land in the range. An export is rendered once and streamed to
+    every request for it as it is written, so the first bytes go out as soon as they are encoded whatever the length
+    of the range. Exports are evicted, least recently used first, once they take more than DISK_BUDGET_BYTES, and
+    deleted when evicted and on startup and shutdown. Exports are weighed as they're written, so renders in flight
+    count against the budget too, and once evicted are read on to the end by those already streaming them.
+
+    A range renders to the same bytes every time (see AudioArchiveService.render and LavaFunctions.EncodingPipeline),
+    so its strong ETag is its version and the options it's rendered with (see tag). A client can be told its copy is
+    current, or resume a download, without anything being rendered, even once the export is evicted or after a
+    restart.
+ */
+@Service
+public class ExportCache {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    static final long DISK_BUDGET_BYTES = 1024L * 1024 * 1024;
+    static final int RENDER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final long WEIGH_EVERY_BYTES = 1024 * 1024;
+    // Part of every tag, to be changed whenever the same packets would render to other bytes
+    static final int RENDERING = 1;
+
+    @Autowired
+    AudioStore audioStore;
+
+    @Autowired
+    AudioArchiveService audioArchiveService;
+
+    private final Path dir;
+    private final ExecutorService renderer = Executors.newFixedThreadPool(RENDER_THREADS);
+    private final Cache<Key, Entry> exports;
+
+    private final Counter hits = Metrics.counter("recorder.audio.exports.requests", "result", "hit");
+    private final Counter misses = Metrics.counter("recorder.audio.exports.requests", "result", "miss");
+    private final Timer renderTimer = Metrics.timer("recorder.audio.exports.render");
+
+    public ExportCache() {
+        this(Path.of(System.getProperty("java.io.tmpdir"), "recorder-exports"), DISK_BUDGET_BYTES);
+    }
+
+    ExportCache(Path dir, long budgetBytes) {
+        this.dir = dir;
+        this.exports = Caffeine.newBuilder()
+                .maximumWeight(budgetBytes)
+                // Weighed again every WEIGH_EVERY_BYTES written and once complete
+                .weigher((Key key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.written))
+                .executor(Runnable::run) // delete synchronously on removal
+                .removalListener((Key key, Entry entry, RemovalCause cause) -> {
+                    if(entry != null && cause != RemovalCause.REPLACED) {
+                        entry.delete();
+                    }
+                })
+                .build();
+        deleteAll(); // left by a previous run
+    }
+
+    /*
+        Opens the export of a label from from until until, starting a render unless a current one is cached or
+        being rendered.
+     */
+    public Export open(String key, String label, Instant from, Instant until) {
+        return open(key, label, from, until, true, false);
+    }
+
+    public Export open(String key, String label, Instant from, Instant until, boolean radioEffect, boolean narrowband) {
+        Key cacheKey = new Key(key, label, from.toEpochMilli(), until.toEpochMilli(), radioEffect, narrowband);
+        String version = version(key, label, from, until);
+
+        boolean retried = false;
+        while(true) {
+            boolean[] rendered = new boolean[]{ false };
+            Entry entry = exports.get(cacheKey, k -> {
+                rendered[0] = true;
+                return render(k, version);
+            });
+            if(entry.failure != null) {
+                exports.asMap().remove(cacheKey, entry);
+                throw new RuntimeException("Failed to render '" + key + "' " + label, entry.failure);
+            }
+
+            // Stale, rendered before packets landed in the range. Retried once, a newer render can be served.
+            if(!retried && !entry.version.equals(version)) {
+                exports.asMap().remove(cacheKey, entry);
+                retried = true;
+                continue;
+            }
+            try {
+                long length = entry.length;
+                Export export = new Export(new RenderInputStream(FileChannel.open(entry.file, StandardOpenOption.READ), entry), entry, length, tag(cacheKey, entry.version));
+                (rendered[0] ? misses : hits).increment();
+                return export;
+            } catch (NoSuchFileException e) {
+                exports.asMap().remove(cacheKey, entry); // evicted since it was looked up
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+        Writes the export of every label with packets from from until until to out as a ZIP, an entry per label
+        named by entryName. The labels are all rendered at once, in parallel on the render threads, and each is
+        copied into the ZIP as it becomes available, so a bundle takes about as long as its longest label.
+     */
+    public void bundle(String key, Instant from, Instant until, boolean radioEffect, boolean narrowband, Function<String, String> entryName, OutputStream out) {
+        List<String> labels = labels(key, from, until);
+        List<Export> exports = new ArrayList<>();
+        try {
+            for(String label : labels) {
+                exports.add(open(key, label, from, until, radioEffect, narrowband));
+            }
+
+            ZipOutputStream zip = new ZipOutputStream(out);
+            zip.setLevel(Deflater.NO_COMPRESSION); // Opus doesn't compress
+            for(int i = 0; i < labels.size(); i++) {
+                zip.putNextEntry(new ZipEntry(entryName.apply(labels.get(i))));
+                exports.get(i).getInputStream().transferTo(zip);
+                zip.closeEntry();
+            }
+            zip.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for(Export export : exports) {
+                try {
+                    export.getInputStream().close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close export", e);
+                }
+            }
+        }
+    }
+
+    List<String> labels(String key, Instant from, Instant until) {
+        return audioStore.findLabels(key, from, until).stream()
+                .map(AudioStore.LabelSummary::getLabel)
+                .collect(Collectors.toList());
+    }
+
+    /*
+        The strong ETag of the export of a label from from until until that would be served, whether or not it has
+        been rendered.
+     */
+    public String tag(String key, String label, Instant from, Instant until, boolean radioEffect, boolean narrowband) {
+        return tag(new Key(key, label, from.toEpochMilli(), until.toEpochMilli(), radioEffect, narrowband), version(key, label, from, until));
+    }
+
+    // The range's version, so a tag is never reused for another range, and how it's rendered
+    private static String tag(Key key, String version) {
+        String options = !key.radioEffect ? "remux" : key.narrowband ? "narrowband" : "radio";
+        return version + "-" + options + "-" + RENDERING;
+    }
+
+    /*
+        Changes whenever packets of the label are added to or deleted from the range, or compacted into the archive.
+     */
+    String version(String key, String label, Instant from, Instant until) {
+        long hash = 17;
+        int count = 0;
+        for(AudioStore.Transmission t : audioStore.findTransmissions(key, from, until)) {
+            if(t.getLabel().equals(label)) {
+                hash = 31 * (31 * (31 * hash + t.getStart()) + t.getEnd()) + t.getPacketCount();
+                count++;
+            }
+        }
+        for(AudioArchive.Chunk chunk : audioStore.archive(key).chunks(label, from.toEpochMilli(), until.toEpochMilli())) {
+            hash = 31 * (31 * hash + chunk.getStart()) + chunk.getEnd();
+        }
+        return count + "-" + Long.toHexString(hash);
+    }
+
+    void render(Key key, OutputStream out) {
+        audioArchiveService.export(key.key, key.label, Instant.ofEpochMilli(key.from), Instant.ofEpochMilli(key.until), key.radioEffect, key.narrowband, out);
+    }
+
+    /*
+        Creates the export's file and renders into it in the background.
+     */
+    private Entry render(Key key, String version) {
+        Entry entry = new Entry(dir.resolve(UUID.randomUUID() + ".ogg"), version);
+        try {
+            Files.createDirectories(dir);
+            Files.createFile(entry.file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        renderer.execute(() -> {
+            long began = System.nanoTime();
+            Runnable weigh = () -> exports.asMap().replace(key, entry, entry); // unless evicted
+            try (ProgressOutputStream out = new ProgressOutputStream(Files.newOutputStream(entry.file), entry, weigh)) {
+                render(key, out);
+                out.flush();
+                entry.complete(out.count);
+                renderTimer.record(Duration.ofNanos(System.nanoTime() - began));
+                weigh.run();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to render '" + key.key + "' " + key.label, e);
+                entry.fail(e);
+                exports.asMap().remove(key, entry);
+            }
+        });
+        return entry;
+    }
+
+    /*
+        Applies pending evictions, which otherwise happen as the cache is next used.
+     */
+    void cleanUp() {
+        exports.cleanUp();
+    }
+
+    @PreDestroy
+    public void close() {
+        renderer.shutdownNow();
+        exports.invalidateAll();
+        deleteAll();
+    }
+
+    private void deleteAll() {
+        if(!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        An opened export, readable even if it is evicted before it is read. The stream must be closed.
+        The length is -1 if the export was still being rendered when opened, its stream then reads up to the end
+        of the render.
+     */
+    public static class Export {
+        private final RenderInputStream inputStream;
+        private final Entry entry;
+        private final long length;
+        private final String tag;
+
+        Export(RenderInputStream inputStream, Entry entry, long length, String tag) {
+            this.inputStream = inputStream;
+            this.entry = entry;
+            this.length = length;
+            this.tag = tag;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /*
+            The stream, reading the bytes from start until end instead of the whole export. Before reading.
+         */
+        public InputStream getInputStream(long start, long end) {
+            inputStream.range(start, end);
+            return inputStream;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /*
+            The length, waiting for the render to complete if it hadn't when opened.
+         */
+        public long awaitLength() throws IOException {
+            return entry.awaitComplete();
+        }
+
+        /*
+            The ETag of the export as rendered, see ExportCache.tag.
+         */
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    static class Key {
+        private final String key;
+        private final String label;
+        private final long from;
+        private final long until;
+        private final boolean radioEffect;
+        private final boolean narrowband;
+
+        Key(String key, String label, long from, long until, boolean radioEffect, boolean narrowband) {
+            this.key = key;
+            this.label = label;
+            this.from = from;
+            this.until = until;
+            this.radioEffect = radioEffect;
+            this.narrowband = radioEffect && narrowband; // only the radio effect is rendered narrowband
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        String getLabel() {
+            return label;
+        }
+
+        long getFrom() {
+            return from;
+        }
+
+        long getUntil() {
+            return until;
+        }
+
+        boolean isRadioEffect() {
+            return radioEffect;
+        }
+
+        boolean isNarrowband() {
+            return narrowband;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return from == other.from && until == other.until && radioEffect == other.radioEffect && narrowband == other.narrowband
+                    && key.equals(other.key) && label.equals(other.label);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, label, from, until, radioEffect, narrowband);
+        }
+    }
+
+    private static class Entry {
+        private final Path file;
+        private final String version;
+        // Bytes written so far, and once complete the length, otherwise -1
+        private volatile long written;
+        private volatile long length = -1;
+        private volatile Throwable failure;
+
+        Entry(Path file, String version) {
+            this.file = file;
+            this.version = version;
+        }
+
+        synchronized void progressed(long written) {
+            this.written = written;
+            notifyAll();
+        }
+
+        synchronized void complete(long length) {
+            this.written = length;
+            this.length = length;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        boolean isComplete() {
+            return length >= 0;
+        }
+
+        /*
+            Waits for more than position bytes to be written, or for the render to end.
+         */
+        synchronized void awaitProgress(long position) throws IOException {
+            while(written <= position && !isComplete() && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if(failure != null) {
+                throw new IOException("Render failed", failure);
+            }
+        }
+
+        synchronized long awaitComplete() throws IOException {
+            while(!isComplete() && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if(failure != null) {
+                throw new IOException("Render failed", failure);
+            }
+            return length;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+        Reads an export as it is rendered, waiting for the render to catch up.
+     */
+    private static class RenderInputStream extends InputStream {
+        private final FileChannel channel;
+        private final Entry entry;
+        private long position;
+        private long limit = Long.MAX_VALUE;
+
+        RenderInputStream(FileChannel channel, Entry entry) {
+            this.channel = channel;
+            this.entry = entry;
+        }
+
+        void range(long start, long end) {
+            position = start;
+            limit = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(position >= limit) {
+                return -1;
+            }
+            len = (int) Math.min(len, limit - position);
+            while(true) {
+                boolean complete = entry.isComplete(); // before reading, so nothing written since is missed
+                int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+                if(read > 0) {
+                    position += read;
+                    return read;
+                }
+                if(complete) {
+                    return -1;
+                }
+                entry.awaitProgress(position);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ProgressOutputStream extends FilterOutputStream {
+        private final Entry entry;
+        private final Runnable weigh;
+        private long count;
+        private long weighed;
+
+        ProgressOutputStream(OutputStream out, Entry entry, Runnable weigh) {
+            super(out);
+            this.entry = entry;
+            this.weigh = weigh;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            progressed(count + 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            progressed(count + len);
+        }
+
+        private void progressed(long count) {
+            this.count = count;
+            entry.progressed(count);
+            if(count - weighed >= WEIGH_EVERY_BYTES) {
+                weighed = count;
+                weigh.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/*
+    Batches packets per store and commits each batch in a single append.
+
+    Producers (e.g. Netty UDP threads) only ever offer to a bounded queue and never wait on disk. A single writer
+    thread commits a store's queue once it holds a full batch or its oldest packet has waited the maximum age.
+    When the disk falls behind and a queue fills up, new packets are dropped and counted rather than blocking.
+    A store's queue is removed once it has been empty for IDLE_AGES batch ages, so stores no longer written to
+    aren't visited by the writer forever.
+ */
+public class GroupCommitWriter<T> implements AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // A minute at AudioStore's quarter second
+    static final int IDLE_AGES = 240;
+
+    private final int queueCapacity;
+    private final int maxBatchSize;
+    private final long maxBatchAgeNanos;
+    private final BiConsumer<String, List<T>> commit;
+
+    private final Map<String, Batcher<T>> batchers = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public GroupCommitWriter(int queueCapacity, int maxBatchSize, Duration maxBatchAge, BiConsumer<String, List<T>> commit) {
+        this.queueCapacity = queueCapacity;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchAgeNanos = maxBatchAge.toNanos();
+        this.commit = commit;
+
+        writer = new Thread(this::run, "group-commit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+        Returns false if the packet was dropped because the store's queue is full or the writer is closed.
+     */
+    public boolean offer(String key, T t) {
+        if(!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        // Offered within compute, so an idle batcher can't be removed between being looked up and offered to
+        boolean[] offered = new boolean[1];
+        Batcher<T> batcher = batchers.compute(key, (k, b) -> {
+            Batcher<T> current = b == null ? new Batcher<>(queueCapacity) : b;
+            offered[0] = current.queue.offer(t);
+            return current;
+        });
+        if(!offered[0]) {
+            long count = dropped.incrementAndGet();
+            if(Long.bitCount(count) == 1) { // 1, 2, 4, 8... to avoid flooding the log
+                logger.warn("Writer for '" + key + "' is behind, dropped " + count + " packets in total");
+            }
+            return false;
+        }
+
+        if(batcher.queue.size() >= maxBatchSize) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    private void run() {
+        while(running) {
+            LockSupport.parkNanos(maxBatchAgeNanos);
+            commitReady(false);
+        }
+    }
+
+    int batcherCount() {
+        return batchers.size();
+    }
+
+    private void commitReady(boolean flush) {
+        long now = System.nanoTime();
+        batchers.forEach((key, batcher) -> {
+            if(batcher.queue.isEmpty()) {
+                batcher.lastCommit = now;
+                if(++batcher.idleAges >= IDLE_AGES) {
+                    batchers.computeIfPresent(key, (k, b) -> b.queue.isEmpty() ? null : b);
+                }
+                return;
+            }
+            batcher.idleAges = 0;
+
+            while(flush
+                    || batcher.queue.size() >= maxBatchSize
+                    || now - batcher.lastCommit >= maxBatchAgeNanos) {
+                List<T> batch = new ArrayList<>(maxBatchSize);
+                batcher.queue.drainTo(batch, maxBatchSize);
+                if(batch.isEmpty()) {
+                    break;
+                }
+
+                try {
+                    commit.accept(key, batch);
+                    commits.incrementAndGet();
+                } catch (RuntimeException e) {
+                    dropped.addAndGet(batch.size());
+                    logger.error("Failed to commit " + batch.size() + " packets for '" + key + "'", e);
+                }
+                batcher.lastCommit = now;
+            }
+        });
+    }
+
+    /*
+        Stops accepting packets and commits everything already queued.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitReady(true);
+    }
+
+    static class Batcher<T> {
+        private final BlockingQueue<T> queue;
+        // Only accessed by the writer
+        private long lastCommit = System.nanoTime();
+        private int idleAges;
+
+        Batcher(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+}
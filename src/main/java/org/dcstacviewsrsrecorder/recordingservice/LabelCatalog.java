@@ -0,0 +1,111 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    First timestamp, last timestamp and packet count of each label, maintained as packets are appended.
+
+    Kept for each packet log segment (written to a sidecar file when the segment is sealed) and for the log as a
+    whole, so finding which labels have audio in a time range doesn't read any packets.
+ */
+class LabelCatalog {
+    static final int ENTRY_BYTES = 28; // [label id:int][first:long][last:long][packet count:long]
+
+    private final Map<Integer, Entry> entries = new TreeMap<>();
+
+    synchronized void add(int labelId, long timestamp) {
+        Entry entry = entries.get(labelId);
+        if(entry == null) {
+            entries.put(labelId, new Entry(labelId, timestamp, timestamp, 1));
+        } else {
+            entry.first = Math.min(entry.first, timestamp);
+            entry.last = Math.max(entry.last, timestamp);
+            entry.packetCount++;
+        }
+    }
+
+    synchronized void addAll(List<Entry> other) {
+        other.forEach(e -> {
+            Entry entry = entries.get(e.labelId);
+            if(entry == null) {
+                entries.put(e.labelId, e.copy());
+            } else {
+                entry.first = Math.min(entry.first, e.first);
+                entry.last = Math.max(entry.last, e.last);
+                entry.packetCount += e.packetCount;
+            }
+        });
+    }
+
+    synchronized Entry get(int labelId) {
+        Entry entry = entries.get(labelId);
+        return entry == null ? null : entry.copy();
+    }
+
+    /*
+        Copies of the entries with packets between from and until.
+     */
+    synchronized List<Entry> entries(long from, long until) {
+        List<Entry> result = new ArrayList<>();
+        entries.values().stream()
+                .filter(e -> e.first <= until && e.last >= from)
+                .forEach(e -> result.add(e.copy()));
+        return result;
+    }
+
+    synchronized long memoryBytes() {
+        return entries.size() * 64L;
+    }
+
+    synchronized void write(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.size() * ENTRY_BYTES);
+        entries.values().forEach(e -> buffer.putInt(e.labelId).putLong(e.first).putLong(e.last).putLong(e.packetCount));
+        buffer.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static List<Entry> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Entry> entries = new ArrayList<>();
+        while(buffer.remaining() >= ENTRY_BYTES) {
+            entries.add(new Entry(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong()));
+        }
+        return entries;
+    }
+
+    static class Entry {
+        final int labelId;
+        long first;
+        long last;
+        long packetCount;
+
+        Entry(int labelId, long first, long last, long packetCount) {
+            this.labelId = labelId;
+            this.first = first;
+            this.last = last;
+            this.packetCount = packetCount;
+        }
+
+        Entry copy() {
+            return new Entry(labelId, first, last, packetCount);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/*
+    (label id, timestamp) -> record offset index of one packet log segment.
+
+    While a segment is appended to, entries are held in memory per label. When the segment is sealed they are written
+    to a sidecar file sorted by (label id, timestamp), so a range read for one label binary searches straight to its
+    first packet in range and then visits only that label's records, in order.
+ */
+class LabelIndex {
+    static final int ENTRY_BYTES = 16; // [label id:int][timestamp:long][offset:int]
+
+    private final Map<Integer, Entries> byLabel = new ConcurrentHashMap<>();
+
+    /*
+        Only called by the single appending thread.
+     */
+    void add(int labelId, long timestamp, int offset) {
+        byLabel.computeIfAbsent(labelId, id -> new Entries()).add(timestamp, offset);
+    }
+
+    /*
+        Offsets of the label's records from about from until about until. The in memory entries are in append order,
+        which may be slightly out of timestamp order, so the range is widened by slack and callers filter exactly.
+     */
+    IntStream offsets(int labelId, long from, long until, long slack) {
+        Entries entries = byLabel.get(labelId);
+        if(entries == null) {
+            return IntStream.empty();
+        }
+
+        int size = entries.size;
+        long[] timestamps = entries.timestamps;
+        int[] offsets = entries.offsets;
+
+        long seekFrom = from - slack > from ? Long.MIN_VALUE : from - slack;
+        long seekUntil = until + slack < until ? Long.MAX_VALUE : until + slack;
+        int first = lowerBound(timestamps, size, seekFrom);
+        return IntStream.range(first, size)
+                .takeWhile(i -> timestamps[i] <= seekUntil)
+                .map(i -> offsets[i]);
+    }
+
+    long memoryBytes() {
+        return byLabel.values().stream().mapToLong(e -> e.timestamps.length * 12L).sum();
+    }
+
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int[] labelIds = byLabel.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            for(int labelId : labelIds) {
+                Entries entries = byLabel.get(labelId);
+                long[][] sorted = new long[entries.size][];
+                for(int i = 0; i < entries.size; i++) {
+                    sorted[i] = new long[]{ entries.timestamps[i], entries.offsets[i] };
+                }
+                Arrays.sort(sorted, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+                ByteBuffer buffer = ByteBuffer.allocate(sorted.length * ENTRY_BYTES);
+                for(long[] entry : sorted) {
+                    buffer.putInt(labelId).putLong(entry[0]).putInt((int) entry[1]);
+                }
+                buffer.flip();
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+        Offsets of the label's records in [from, until] from a sealed index file, in timestamp order.
+     */
+    static IntStream offsets(Path file, int labelId, long from, long until) throws IOException {
+        final MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int entries = buffer.capacity() / ENTRY_BYTES;
+
+        // First entry not less than (labelId, from)
+        int low = 0;
+        int high = entries;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            int id = buffer.getInt(mid * ENTRY_BYTES);
+            long timestamp = buffer.getLong(mid * ENTRY_BYTES + 4);
+            if(id < labelId || (id == labelId && timestamp < from)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return IntStream.range(low, entries)
+                .takeWhile(i -> buffer.getInt(i * ENTRY_BYTES) == labelId && buffer.getLong(i * ENTRY_BYTES + 4) <= until)
+                .map(i -> buffer.getInt(i * ENTRY_BYTES + 12));
+    }
+
+    private static int lowerBound(long[] timestamps, int size, long timestamp) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(timestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+        Growable arrays published to concurrent readers through the volatile size.
+     */
+    static class Entries {
+        private volatile long[] timestamps = new long[1024];
+        private volatile int[] offsets = new int[1024];
+        private volatile int size;
+
+        void add(long timestamp, int offset) {
+            if(size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            timestamps[size] = timestamp;
+            offsets[size] = offset;
+            size = size + 1;
+        }
+    }
+}
@@ -0,0 +1,1017 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+    Append-only log of timestamped packets for one recording session.
+
+    Packets are appended to time ordered segment files, rolled every UTC hour (or sooner if a segment fills up).
+    A record is [timestamp:long][label id:int][length:int][bytes], labels being interned in a small dictionary file.
+    A packet with several labels (a radio on several frequencies) is stored once, its label id naming a set of
+    labels that is interned in the same dictionary as a tab separated line. Reads treat it as one packet per label.
+    Each segment has a sparse time index of (timestamp, offset) pairs, so a range read seeks close to the start of the
+    range and then scans the memory mapped segment sequentially. Reads for a single label use the segment's
+    (label id, timestamp) index instead, see LabelIndex. Segments also summarise their transmissions, see
+    TransmissionSummary, and catalog their labels, see LabelCatalog. All are derived from the records and can be
+    rebuilt from them.
+
+    Packets can be read either as copies or, for exports that only pass over each packet once, as views of the
+    mapped segment that are reused from one packet to the next, see PacketView.
+
+    Once a closed segment's audio has been rendered to the AudioArchive, the segment is compacted: its records and
+    indexes are deleted and only its transmission summary and label catalog remain.
+ */
+public class PacketLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PacketLog.class);
+
+    static final int MAGIC = 0x53525350; // "SRSP"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_BYTES = 8;
+    static final int RECORD_HEADER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 16;
+    static final long INDEX_INTERVAL_MILLIS = 1000;
+    // Packets from concurrent receivers can be appended slightly out of timestamp order
+    static final long SEEK_SLACK_MILLIS = 1000;
+    static final long SEGMENT_MILLIS = 60 * 60 * 1000;
+    static final long MAX_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String LABEL_INDEX_SUFFIX = ".lidx";
+    private static final String TRANSMISSIONS_SUFFIX = ".tx";
+    private static final String CATALOG_SUFFIX = ".cat";
+    private static final String LABEL_SET_SEPARATOR = "\t";
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmssSSS").withZone(ZoneId.of("UTC"));
+
+    private final Path dir;
+    private final FileChannel labelsChannel;
+    private final List<String> labels = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> labelIds = new ConcurrentHashMap<>();
+    // Label ids of each label or label set id
+    private final List<int[]> members = new CopyOnWriteArrayList<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private volatile LabelCatalog catalog = new LabelCatalog();
+    private volatile boolean closed;
+
+    private PacketLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+
+        Path labelsFile = dir.resolve("labels");
+        if(Files.exists(labelsFile)) {
+            Files.readAllLines(labelsFile, StandardCharsets.UTF_8).stream()
+                    .filter(l -> !l.isEmpty())
+                    .forEach(l -> {
+                        labels.add(l);
+                        labelIds.put(l, labels.size() - 1);
+                        members.add(membersOf(l, labels.size() - 1));
+                    });
+        }
+        labelsChannel = FileChannel.open(labelsFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        try(Stream<Path> files = Files.list(dir)) {
+            // Compacted segments only have their catalog left
+            List<Path> segmentFiles = files
+                    .map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX) || n.endsWith(CATALOG_SUFFIX))
+                    .map(n -> dir.resolve(n.replace(CATALOG_SUFFIX, SEGMENT_SUFFIX)))
+                    .distinct()
+                    .sorted()
+                    .collect(Collectors.toList());
+            for(Path segmentFile : segmentFiles) {
+                segments.add(Files.exists(segmentFile) ? Segment.open(segmentFile, members::get) : Segment.compacted(segmentFile));
+            }
+        }
+        catalog = catalog(segments);
+    }
+
+    public static PacketLog open(Path dir) {
+        try {
+            return new PacketLog(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public boolean isEmpty() {
+        return segments.stream().allMatch(s -> s.size() <= SEGMENT_HEADER_BYTES);
+    }
+
+    public void append(AudioStore.Packet packet) {
+        append(List.of(packet));
+    }
+
+    public synchronized void append(List<? extends AudioStore.Packet> packets) {
+        checkOpen();
+        try {
+            int i = 0;
+            while(i < packets.size()) {
+                Segment segment = segmentFor(packets.get(i));
+                ByteBuffer records = ByteBuffer.allocate(
+                        packets.subList(i, packets.size()).stream().mapToInt(p -> RECORD_HEADER_BYTES + p.getBytes().length).sum()
+                );
+                long position = segment.size();
+                List<long[]> indexEntries = new ArrayList<>();
+                List<long[]> labelEntries = new ArrayList<>();
+                for(; i < packets.size(); i++) {
+                    AudioStore.Packet packet = packets.get(i);
+                    if(segment.isFullFor(packet, records.position()) || needsRoll(segment, packet)) {
+                        break;
+                    }
+                    if(segment.shouldIndex(packet.getTimestamp())) {
+                        indexEntries.add(new long[]{ packet.getTimestamp(), position + records.position() });
+                    }
+                    int labelId = labelId(packet.getLabels());
+                    for(int member : members.get(labelId)) {
+                        labelEntries.add(new long[]{ member, packet.getTimestamp(), position + records.position() });
+                    }
+                    records.putLong(packet.getTimestamp());
+                    records.putInt(labelId);
+                    records.putInt(packet.getBytes().length);
+                    records.put(packet.getBytes());
+                }
+                records.flip();
+                segment.write(records, indexEntries, labelEntries);
+                labelEntries.forEach(e -> catalog.add((int) e[0], e[1]));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Packets in timestamp range [from, until] (inclusive), optionally restricted to a label.
+        The stream reads lazily from memory mapped segments.
+     */
+    public Stream<AudioStore.Packet> read(long from, long until, String label) {
+        final int labelId;
+        if(label == null) {
+            labelId = -1;
+        } else {
+            Integer id = findLabelId(label);
+            if(id == null) {
+                return Stream.empty();
+            }
+            labelId = id;
+        }
+
+        return segments(from, until).stream().flatMap(segment -> segment.read(from, until, labelId, members::get, labels::get, null));
+    }
+
+    /*
+        As read, but packets are views of the mapped segments and the same instance is passed for every packet,
+        so a packet must not be used after the stream advances. Nothing is allocated per packet.
+     */
+    public Stream<AudioStore.Packet> view(long from, long until, String label) {
+        final int labelId;
+        if(label == null) {
+            labelId = -1;
+        } else {
+            Integer id = findLabelId(label);
+            if(id == null) {
+                return Stream.empty();
+            }
+            labelId = id;
+        }
+
+        PacketView packet = new PacketView(labels::get);
+        return segments(from, until).stream().flatMap(segment -> segment.read(from, until, labelId, members::get, labels::get, packet));
+    }
+
+    /*
+        Transmissions overlapping [from, until], clipped to it.
+     */
+    public List<AudioStore.Transmission> transmissions(long from, long until) {
+        List<TransmissionSummary.Run> runs = new ArrayList<>();
+        try {
+            for(Segment segment : segments(from, until)) {
+                runs.addAll(segment.transmissions(from, until));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return TransmissionSummary.merge(runs).stream()
+                .map(r -> new AudioStore.Transmission(
+                        Math.max(r.start, from),
+                        Math.min(r.end, until),
+                        labels.get(r.labelId),
+                        r.packetCount
+                ))
+                .collect(Collectors.toList());
+    }
+
+    /*
+        Labels with packets between from and until, with their first, last and count of packets across the whole log.
+     */
+    public List<AudioStore.LabelSummary> labels(long from, long until) {
+        Set<Integer> labelIds = new TreeSet<>();
+        try {
+            for(Segment segment : segments(from, until)) {
+                segment.catalog().stream()
+                        .filter(e -> e.first <= until && e.last >= from)
+                        .forEach(e -> labelIds.add(e.labelId));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        LabelCatalog snapshot = catalog;
+        return labelIds.stream()
+                .map(snapshot::get)
+                .filter(Objects::nonNull)
+                .map(e -> new AudioStore.LabelSummary(labels.get(e.labelId), e.first, e.last, e.packetCount))
+                .collect(Collectors.toList());
+    }
+
+    /*
+        Rebuilds the label indexes, transmission summaries and label catalogs of every segment from its records.
+     */
+    public synchronized void rebuildSummaries() {
+        checkOpen();
+        try {
+            for(Segment segment : segments) {
+                segment.rebuildSummaries(members::get);
+            }
+            catalog = catalog(segments);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Closed segments, as [start, end), that ended by before and are not yet compacted.
+     */
+    public List<Interval<Long>> compactable(long before) {
+        return closed(before, false);
+    }
+
+    /*
+        Closed segments, as [start, end), that ended by before, compacted or not.
+     */
+    public List<Interval<Long>> expirable(long before) {
+        return closed(before, true);
+    }
+
+    /*
+        A segment ends where the next starts, or at the end of its hour if it is the last.
+     */
+    private List<Interval<Long>> closed(long before, boolean includeCompacted) {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        List<Interval<Long>> result = new ArrayList<>();
+        for(int i = 0; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+            long end = i < snapshot.size() - 1
+                    ? snapshot.get(i + 1).getStart()
+                    : (segment.getStart() / SEGMENT_MILLIS + 1) * SEGMENT_MILLIS;
+            if(segment.isSealed() && (includeCompacted || !segment.isCompacted()) && end <= before) {
+                result.add(Interval.between(segment.getStart(), end));
+            }
+        }
+        return result;
+    }
+
+    /*
+        Deletes the closed segment starting at start with its indexes and summaries, returning the bytes freed.
+     */
+    public synchronized long delete(long start) {
+        checkOpen();
+        try {
+            for(Segment segment : segments) {
+                if(segment.getStart() == start) {
+                    if(!segment.isSealed()) {
+                        throw new IllegalStateException("Segment '" + segment.getFile() + "' is still open");
+                    }
+                    long freed = segment.delete();
+                    segments.remove(segment);
+                    catalog = catalog(segments);
+                    return freed;
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Deletes the records and indexes of the closed segment starting at start, keeping its summaries.
+        Packets appended later for its time range go to a new segment.
+     */
+    public synchronized void compact(long start) {
+        checkOpen();
+        for(int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if(segment.getStart() == start && !segment.isCompacted()) {
+                if(!segment.isSealed()) {
+                    throw new IllegalStateException("Segment '" + segment.getFile() + "' is still open");
+                }
+                try {
+                    segments.set(i, segment.compact());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+        }
+    }
+
+    private static LabelCatalog catalog(List<Segment> segments) throws IOException {
+        LabelCatalog catalog = new LabelCatalog();
+        for(Segment segment : segments) {
+            catalog.addAll(segment.catalog());
+        }
+        return catalog;
+    }
+
+    /*
+        Segments that may hold packets in [from, until]. A segment covers from its start to the next segment's start.
+     */
+    private List<Segment> segments(long from, long until) {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        long seekFrom = saturatedAdd(from, -SEEK_SLACK_MILLIS);
+        long seekUntil = saturatedAdd(until, SEEK_SLACK_MILLIS);
+
+        List<Segment> result = new ArrayList<>();
+        for(int i = 0; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+            boolean startsBeforeEnd = segment.getStart() <= seekUntil;
+            boolean endsAfterStart = i == snapshot.size() - 1 || snapshot.get(i + 1).getStart() > seekFrom;
+            if(startsBeforeEnd && endsAfterStart) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    public Stream<AudioStore.Packet> read(long from, long until) {
+        return read(from, until, null);
+    }
+
+    public Stream<AudioStore.Packet> readAll(String label) {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, label);
+    }
+
+    private Integer findLabelId(String label) {
+        return labelIds.get(label);
+    }
+
+    /*
+        Id of the label, or of the set of labels if there are several.
+     */
+    private synchronized int labelId(List<String> packetLabels) throws IOException {
+        if(packetLabels.size() == 1) {
+            return labelId(packetLabels.get(0));
+        }
+        StringBuilder set = new StringBuilder();
+        for(String label : packetLabels) {
+            labelId(label);
+            set.append(LABEL_SET_SEPARATOR).append(label);
+        }
+        return labelId(set.toString());
+    }
+
+    private synchronized int labelId(String label) throws IOException {
+        Integer id = labelIds.get(label);
+        if(id == null) {
+            id = labels.size();
+            labelsChannel.write(ByteBuffer.wrap((label + "\n").getBytes(StandardCharsets.UTF_8)));
+            members.add(membersOf(label, id));
+            labels.add(label);
+            labelIds.put(label, id);
+        }
+        return id;
+    }
+
+    /*
+        A set's labels are always interned before the set.
+     */
+    private int[] membersOf(String label, int id) {
+        if(!label.startsWith(LABEL_SET_SEPARATOR)) {
+            return new int[]{ id };
+        }
+        return Stream.of(label.substring(1).split(LABEL_SET_SEPARATOR))
+                .mapToInt(labelIds::get)
+                .toArray();
+    }
+
+    private Segment segmentFor(AudioStore.Packet packet) throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // Sealed by closing the log, carry on appending to it rather than starting a segment per reopen
+        if(last != null && last.isSealed() && !last.isCompacted() && !needsRoll(last, packet) && !last.isFullFor(packet, 0)) {
+            last.resume(members::get);
+            return last;
+        }
+        if(last == null || last.isSealed() || needsRoll(last, packet) || last.isFullFor(packet, 0)) {
+            long start = packet.getTimestamp();
+            if(last != null) {
+                last.seal();
+                // A late packet must not start a segment before the last, segments are kept in order
+                start = Math.max(start, last.end());
+            }
+            last = Segment.create(dir, start);
+            segments.add(last);
+        }
+        return last;
+    }
+
+    private static boolean needsRoll(Segment segment, AudioStore.Packet packet) {
+        // Only roll forwards in time, late packets stay with the current segment
+        return packet.getTimestamp() / SEGMENT_MILLIS > segment.getStart() / SEGMENT_MILLIS;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        // Overflow iff both arguments have the opposite sign of the result
+        if(((a ^ r) & (b ^ r)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return r;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        segments.forEach(Segment::seal);
+        try {
+            labelsChannel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close labels for " + dir, e);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /*
+        Approximate heap held by the summaries of segments still being appended to, which are only written out
+        (and dropped from memory) when a segment is sealed.
+     */
+    public long memoryBytes() {
+        return segments.stream().mapToLong(Segment::memoryBytes).sum() + catalog.memoryBytes();
+    }
+
+    /*
+        Closing seals every segment, and a closed log can still be read but no longer changed: it may have been
+        closed and reopened by another instance, see AudioStore. The reopened log resumes its last segment.
+     */
+    private void checkOpen() {
+        if(closed) {
+            throw new ClosedException("Packet log '" + dir + "' is closed");
+        }
+    }
+
+    public static class ClosedException extends IllegalStateException {
+        ClosedException(String message) {
+            super(message);
+        }
+    }
+
+    static String toFileName(long start) {
+        return formatter.format(Instant.ofEpochMilli(start)) + SEGMENT_SUFFIX;
+    }
+
+    static long fromFileName(String fileName) {
+        return Instant.from(formatter.parse(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()))).toEpochMilli();
+    }
+
+    static class Segment {
+        private final Path file;
+        private final Path indexFile;
+        private final Path labelIndexFile;
+        private final Path transmissionsFile;
+        private final Path catalogFile;
+        private final long start;
+
+        // Open while the segment is the head of the log
+        private FileChannel channel;
+        private FileChannel indexChannel;
+        // Summaries held in memory until the segment is sealed
+        private volatile LabelIndex labelIndex;
+        private volatile TransmissionSummary transmissions;
+        private volatile LabelCatalog catalog;
+
+        private volatile long size;
+        private boolean compacted;
+        private long lastIndexedTimestamp = Long.MIN_VALUE;
+
+        private Segment(Path file, long start, long size) {
+            this.file = file;
+            this.indexFile = file.resolveSibling(file.getFileName().toString().replace(SEGMENT_SUFFIX, INDEX_SUFFIX));
+            this.labelIndexFile = file.resolveSibling(file.getFileName().toString().replace(SEGMENT_SUFFIX, LABEL_INDEX_SUFFIX));
+            this.transmissionsFile = file.resolveSibling(file.getFileName().toString().replace(SEGMENT_SUFFIX, TRANSMISSIONS_SUFFIX));
+            this.catalogFile = file.resolveSibling(file.getFileName().toString().replace(SEGMENT_SUFFIX, CATALOG_SUFFIX));
+            this.start = start;
+            this.size = size;
+        }
+
+        static Segment create(Path dir, long start) throws IOException {
+            Segment segment = new Segment(dir.resolve(toFileName(start)), start, SEGMENT_HEADER_BYTES);
+            segment.channel = FileChannel.open(segment.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment.indexChannel = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            segment.labelIndex = new LabelIndex();
+            segment.transmissions = new TransmissionSummary();
+            segment.catalog = new LabelCatalog();
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+            while(header.hasRemaining()) {
+                segment.channel.write(header, SEGMENT_HEADER_BYTES - header.remaining());
+            }
+            return segment;
+        }
+
+        /*
+            A segment whose records were deleted by compaction.
+         */
+        static Segment compacted(Path file) {
+            Segment segment = new Segment(file, fromFileName(file.getFileName().toString()), SEGMENT_HEADER_BYTES);
+            segment.compacted = true;
+            return segment;
+        }
+
+        /*
+            Opens an existing segment read only, truncating any partially written record left by a crash.
+            Summaries are rebuilt if the segment was not sealed.
+         */
+        static Segment open(Path file, IntFunction<int[]> membersOf) throws IOException {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long fileSize = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+                channel.read(header, 0);
+                header.flip();
+                if(fileSize < SEGMENT_HEADER_BYTES || header.getInt() != MAGIC) {
+                    throw new IllegalStateException("Not a packet log segment '" + file + "'");
+                }
+                int version = header.getInt();
+                if(version != VERSION) {
+                    throw new IllegalStateException("Unsupported segment version " + version + " in '" + file + "'");
+                }
+
+                long position = scan(channel, fileSize, null, null, null, null);
+                if(position < fileSize) {
+                    logger.warn("Truncating " + (fileSize - position) + " bytes of partial record from '" + file + "'");
+                    channel.truncate(position);
+                }
+
+                Segment segment = new Segment(file, fromFileName(file.getFileName().toString()), position);
+                segment.truncateIndex(position);
+                if(Stream.of(segment.labelIndexFile, segment.transmissionsFile, segment.catalogFile).anyMatch(p -> !Files.exists(p))) {
+                    segment.rebuildSummaries(membersOf);
+                }
+                return segment;
+            }
+        }
+
+        /*
+            Offset after the last complete record, feeding each record to the summaries if given.
+         */
+        private static long scan(FileChannel channel, long fileSize, LabelIndex labelIndex, TransmissionSummary transmissions, LabelCatalog catalog, IntFunction<int[]> membersOf) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            int position = SEGMENT_HEADER_BYTES;
+            while(position + RECORD_HEADER_BYTES <= fileSize) {
+                int length = buffer.getInt(position + 12);
+                if(length < 0 || position + RECORD_HEADER_BYTES + (long) length > fileSize) {
+                    break;
+                }
+                if(labelIndex != null) {
+                    long timestamp = buffer.getLong(position);
+                    for(int member : membersOf.apply(buffer.getInt(position + 8))) {
+                        labelIndex.add(member, timestamp, position);
+                        transmissions.add(member, timestamp);
+                        catalog.add(member, timestamp);
+                    }
+                }
+                position = position + RECORD_HEADER_BYTES + length;
+            }
+            return position;
+        }
+
+        /*
+            Called with the log locked, so no appends are in progress.
+         */
+        void rebuildSummaries(IntFunction<int[]> membersOf) throws IOException {
+            if(isCompacted()) {
+                return; // the summaries are all that is left
+            }
+            LabelIndex labelIndex = new LabelIndex();
+            TransmissionSummary transmissions = new TransmissionSummary();
+            LabelCatalog catalog = new LabelCatalog();
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                scan(channel, size, labelIndex, transmissions, catalog, membersOf);
+            }
+
+            if(isSealed()) {
+                labelIndex.write(labelIndexFile);
+                transmissions.write(transmissionsFile);
+                catalog.write(catalogFile);
+            } else {
+                this.labelIndex = labelIndex;
+                this.transmissions = transmissions;
+                this.catalog = catalog;
+            }
+        }
+
+        List<LabelCatalog.Entry> catalog() throws IOException {
+            LabelCatalog memory = catalog;
+            if(memory != null) {
+                return memory.entries(Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            return Files.exists(catalogFile) ? LabelCatalog.read(catalogFile) : List.of();
+        }
+
+        List<TransmissionSummary.Run> transmissions(long from, long until) throws IOException {
+            TransmissionSummary memory = transmissions;
+            if(memory != null) {
+                return memory.runs(from, until);
+            }
+            return Files.exists(transmissionsFile) ? TransmissionSummary.read(transmissionsFile, from, until) : List.of();
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        /*
+            Just after its latest packet, the earliest the next segment may start.
+         */
+        long end() throws IOException {
+            return catalog().stream().mapToLong(e -> e.last + 1).reduce(start + 1, Math::max);
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        boolean isSealed() {
+            return channel == null;
+        }
+
+        long memoryBytes() {
+            LabelIndex labelIndex = this.labelIndex;
+            TransmissionSummary transmissions = this.transmissions;
+            LabelCatalog catalog = this.catalog;
+            return (labelIndex == null ? 0 : labelIndex.memoryBytes())
+                    + (transmissions == null ? 0 : transmissions.memoryBytes())
+                    + (catalog == null ? 0 : catalog.memoryBytes());
+        }
+
+        boolean isCompacted() {
+            return compacted;
+        }
+
+        /*
+            Deletes the records, the segment file last so an interrupted compaction still has it to rebuild from.
+         */
+        Segment compact() throws IOException {
+            Files.deleteIfExists(indexFile);
+            Files.deleteIfExists(labelIndexFile);
+            Files.deleteIfExists(file);
+            return compacted(file);
+        }
+
+        /*
+            Deletes every file of the segment, the catalog last as it marks a compacted segment.
+         */
+        long delete() throws IOException {
+            long freed = 0;
+            for(Path path : List.of(file, indexFile, labelIndexFile, transmissionsFile, catalogFile)) {
+                if(Files.exists(path)) {
+                    freed += Files.size(path);
+                    Files.delete(path);
+                }
+            }
+            return freed;
+        }
+
+        long size() {
+            return size;
+        }
+
+        boolean isFullFor(AudioStore.Packet packet, long pending) {
+            return size + pending + RECORD_HEADER_BYTES + packet.getBytes().length > MAX_SEGMENT_BYTES
+                    && size + pending > SEGMENT_HEADER_BYTES;
+        }
+
+        boolean shouldIndex(long timestamp) {
+            if(lastIndexedTimestamp == Long.MIN_VALUE || timestamp >= lastIndexedTimestamp + INDEX_INTERVAL_MILLIS) {
+                lastIndexedTimestamp = timestamp;
+                return true;
+            }
+            return false;
+        }
+
+        void write(ByteBuffer records, List<long[]> indexEntries, List<long[]> labelEntries) throws IOException {
+            if(channel == null) {
+                throw new IllegalStateException("Segment '" + file + "' is sealed");
+            }
+            long position = size;
+            while(records.hasRemaining()) {
+                position += channel.write(records, position);
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(indexEntries.size() * INDEX_ENTRY_BYTES);
+            indexEntries.forEach(e -> index.putLong(e[0]).putLong(e[1]));
+            index.flip();
+            while(index.hasRemaining()) {
+                indexChannel.write(index);
+            }
+            labelEntries.forEach(e -> {
+                labelIndex.add((int) e[0], e[1], (int) e[2]);
+                transmissions.add((int) e[0], e[1]);
+                catalog.add((int) e[0], e[1]);
+            });
+
+            // Publish only once records and index are written
+            size = position;
+        }
+
+        /*
+            Reopens a sealed segment for appending. Its summaries are rebuilt in memory and their files deleted, so
+            it is left as if it had never been sealed.
+         */
+        void resume(IntFunction<int[]> membersOf) throws IOException {
+            LabelIndex labelIndex = new LabelIndex();
+            TransmissionSummary transmissions = new TransmissionSummary();
+            LabelCatalog catalog = new LabelCatalog();
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                scan(channel, size, labelIndex, transmissions, catalog, membersOf);
+                this.labelIndex = labelIndex;
+                this.transmissions = transmissions;
+                this.catalog = catalog;
+                Files.deleteIfExists(labelIndexFile);
+                Files.deleteIfExists(transmissionsFile);
+                Files.deleteIfExists(catalogFile);
+                indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            this.channel = channel;
+        }
+
+        void seal() {
+            try {
+                if(channel != null) {
+                    channel.force(false);
+                    channel.close();
+                    channel = null;
+                }
+                if(indexChannel != null) {
+                    indexChannel.force(false);
+                    indexChannel.close();
+                    indexChannel = null;
+                }
+                if(labelIndex != null) {
+                    labelIndex.write(labelIndexFile);
+                    labelIndex = null;
+                }
+                if(transmissions != null) {
+                    transmissions.write(transmissionsFile);
+                    transmissions = null;
+                }
+                if(catalog != null) {
+                    catalog.write(catalogFile);
+                    catalog = null;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /*
+            Offset of the last indexed record at least SEEK_SLACK_MILLIS before from.
+         */
+        long seek(long from, long size) throws IOException {
+            if(from == Long.MIN_VALUE || !Files.exists(indexFile)) {
+                return SEGMENT_HEADER_BYTES;
+            }
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            int entries = index.capacity() / INDEX_ENTRY_BYTES;
+            long seekFrom = saturatedAdd(from, -SEEK_SLACK_MILLIS);
+
+            int low = 0;
+            int high = entries - 1;
+            long offset = SEGMENT_HEADER_BYTES;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                long timestamp = index.getLong(mid * INDEX_ENTRY_BYTES);
+                long entryOffset = index.getLong(mid * INDEX_ENTRY_BYTES + 8);
+                if(timestamp <= seekFrom && entryOffset < size) {
+                    offset = entryOffset;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+
+        /*
+            Packets are copied, or set on reuse if given. A record with a set of labels is read as a packet per label.
+         */
+        Stream<AudioStore.Packet> read(long from, long until, int labelId, IntFunction<int[]> membersOf, IntFunction<String> labelOf, PacketView reuse) {
+            long committed = size;
+            if(committed <= SEGMENT_HEADER_BYTES) {
+                return Stream.empty();
+            }
+
+            final MappedByteBuffer buffer;
+            try(FileChannel readChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, committed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            if(labelId >= 0) {
+                return readLabel(buffer, committed, from, until, labelId, labelOf, reuse);
+            }
+
+            final long startOffset;
+            try {
+                startOffset = seek(from, committed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            long seekUntil = saturatedAdd(until, SEEK_SLACK_MILLIS);
+            Spliterator<AudioStore.Packet> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                final ByteBuffer view = buffer.duplicate();
+                int position = (int) startOffset;
+                // Labels of the last record still to be read
+                int record;
+                int[] pending = new int[0];
+                int next;
+
+                @Override
+                public boolean tryAdvance(Consumer<? super AudioStore.Packet> action) {
+                    if(next < pending.length) {
+                        action.accept(packetAt(view, record, pending[next++], labelOf, reuse));
+                        return true;
+                    }
+                    while(position + RECORD_HEADER_BYTES <= committed) {
+                        long timestamp = buffer.getLong(position);
+                        int record = position;
+                        position = position + RECORD_HEADER_BYTES + buffer.getInt(position + 12);
+
+                        if(timestamp > seekUntil) {
+                            position = (int) committed;
+                            return false;
+                        }
+                        if(timestamp >= from && timestamp <= until) {
+                            this.record = record;
+                            pending = membersOf.apply(buffer.getInt(record + 8));
+                            next = 1;
+                            action.accept(packetAt(view, record, pending[0], labelOf, reuse));
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+            return StreamSupport.stream(spliterator, false);
+        }
+
+        private Stream<AudioStore.Packet> readLabel(MappedByteBuffer buffer, long committed, long from, long until, int labelId, IntFunction<String> labelOf, PacketView reuse) {
+            LabelIndex memory = labelIndex;
+            final IntStream offsets;
+            try {
+                offsets = memory != null
+                        ? memory.offsets(labelId, from, until, SEEK_SLACK_MILLIS)
+                        : LabelIndex.offsets(labelIndexFile, labelId, from, until);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            ByteBuffer view = buffer.duplicate();
+            return offsets
+                    .filter(offset -> offset < committed)
+                    .filter(offset -> {
+                        long timestamp = buffer.getLong(offset);
+                        return timestamp >= from && timestamp <= until;
+                    })
+                    .mapToObj(offset -> packetAt(view, offset, labelId, labelOf, reuse));
+        }
+
+        private static AudioStore.Packet packetAt(ByteBuffer view, int position, int labelId, IntFunction<String> labelOf, PacketView reuse) {
+            if(reuse != null) {
+                return reuse.set(view, position, labelId);
+            }
+            byte[] bytes = new byte[view.getInt(position + 12)];
+            view.position(position + RECORD_HEADER_BYTES);
+            view.get(bytes);
+            return new AudioStore.SimplePacket(view.getLong(position), bytes, labelOf.apply(labelId));
+        }
+
+        private void truncateIndex(long validSize) throws IOException {
+            if(!Files.exists(indexFile)) {
+                return;
+            }
+            try(FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long entries = index.size() / INDEX_ENTRY_BYTES;
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+                long valid = 0;
+                while(valid < entries) {
+                    entry.clear();
+                    index.read(entry, valid * INDEX_ENTRY_BYTES);
+                    if(entry.getLong(8) >= validSize) {
+                        break;
+                    }
+                    valid++;
+                }
+                if(valid * INDEX_ENTRY_BYTES < index.size()) {
+                    index.truncate(valid * INDEX_ENTRY_BYTES);
+                }
+            }
+        }
+    }
+
+    /*
+        A packet read in place from a mapped segment, reset for each packet of a view stream.
+        getBuffer returns the segment's bytes between the payload's offsets, getBytes copies them.
+     */
+    static class PacketView implements AudioStore.Packet {
+        private final IntFunction<String> labelOf;
+        private ByteBuffer segment;
+        private int payload;
+        private int length;
+        private long timestamp;
+        private int labelId;
+
+        PacketView(IntFunction<String> labelOf) {
+            this.labelOf = labelOf;
+        }
+
+        PacketView set(ByteBuffer segment, int position, int labelId) {
+            segment.limit(segment.capacity());
+            this.segment = segment;
+            this.timestamp = segment.getLong(position);
+            this.labelId = labelId;
+            this.length = segment.getInt(position + 12);
+            this.payload = position + RECORD_HEADER_BYTES;
+            return this;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public byte[] getBytes() {
+            byte[] bytes = new byte[length];
+            getBuffer().get(bytes);
+            return bytes;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            segment.limit(segment.capacity());
+            segment.position(payload);
+            segment.limit(payload + length);
+            return segment;
+        }
+
+        @Override
+        public String getLabel() {
+            return labelOf.apply(labelId);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    retention.ttl=30d
+    retention.session-ttl.<session>=7d
+    retention.quota=8GB
+ */
+@Component
+@ConfigurationProperties(prefix = "retention")
+public class RetentionProperties {
+    // How long recordings are kept, unless overridden for the session
+    private Duration ttl = Duration.ofDays(30);
+    private Map<String, Duration> sessionTtl = new HashMap<>();
+    // Total size of recordings before the oldest are deleted, no limit if not set
+    private DataSize quota;
+    // Most files deleted per sweep
+    private int batchSize = 100;
+
+    public Duration ttlFor(String session) {
+        return sessionTtl.getOrDefault(session, ttl);
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(Duration ttl) {
+        this.ttl = ttl;
+    }
+
+    public Map<String, Duration> getSessionTtl() {
+        return sessionTtl;
+    }
+
+    public void setSessionTtl(Map<String, Duration> sessionTtl) {
+        this.sessionTtl = sessionTtl;
+    }
+
+    public DataSize getQuota() {
+        return quota;
+    }
+
+    public void setQuota(DataSize quota) {
+        this.quota = quota;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
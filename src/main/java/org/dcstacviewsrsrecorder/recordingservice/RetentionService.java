@@ -0,0 +1,225 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.dcstacviewsrsrecorder.tacview.AcmiCheckpoints;
+import org.dcstacviewsrsrecorder.tacview.AcmiFileWriter;
+import org.dcstacviewsrsrecorder.tacview.AcmiIndex;
+import org.dcstacviewsrsrecorder.tacview.TacviewRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Deletes old recordings: anything older than its session's TTL, then the oldest of all sessions while the total
+    is over the disk quota.
+
+    Recordings are deleted a whole file at a time, closed ACMI files and closed packet log segments (with their
+    archived audio), never the files being written to. A sweep deletes at most retention.batch-size files and each
+    packet log is only locked while one of its segments is deleted, so ingest carries on between deletes.
+ */
+@Service
+public class RetentionService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // As written by TacviewRecorder, relative to the working directory
+    static final Path ACMI_DATA_DIR = Path.of("data");
+
+    @Autowired
+    AudioStore audioStore;
+
+    @Autowired
+    RetentionProperties properties;
+
+    private final AtomicLong usage = Metrics.gauge("recorder.retention.usage", new AtomicLong(), AtomicLong::get);
+    private final Timer sweepTimer = Metrics.timer("recorder.retention.sweep");
+
+    @Scheduled(initialDelay = 120_000, fixedDelay = 10 * 60_000)
+    public void sweep() {
+        long began = System.nanoTime();
+        try {
+            long now = System.currentTimeMillis();
+            List<Unit> units = new ArrayList<>(acmiUnits(ACMI_DATA_DIR, now));
+            units.addAll(audioUnits());
+            units.sort(Comparator.comparingLong(u -> u.start));
+
+            int budget = properties.getBatchSize();
+            List<Unit> kept = new ArrayList<>();
+            for(Unit unit : units) {
+                if(budget > 0 && unit.end <= now - properties.ttlFor(unit.session).toMillis()) {
+                    reclaim(unit, "ttl");
+                    budget--;
+                } else {
+                    kept.add(unit);
+                }
+            }
+
+            long used = sizeOf(ACMI_DATA_DIR) + audioStore.diskUsage();
+            if(properties.getQuota() != null) {
+                for(Unit unit : kept) {
+                    if(budget <= 0 || used <= properties.getQuota().toBytes()) {
+                        break;
+                    }
+                    used -= reclaim(unit, "quota");
+                    budget--;
+                }
+            }
+            usage.set(used);
+
+            if(budget <= 0) {
+                logger.warn("Retention sweep stopped after " + properties.getBatchSize() + " files, continuing next sweep");
+            }
+        } finally {
+            sweepTimer.record(Duration.ofNanos(System.nanoTime() - began));
+        }
+    }
+
+    private long reclaim(Unit unit, String reason) {
+        try {
+            long freed = unit.delete();
+            Metrics.counter("recorder.retention.reclaimed", "kind", unit.kind, "reason", reason).increment(freed);
+            logger.info("Deleted " + unit.kind + " of '" + unit.session + "' from " + Instant.ofEpochMilli(unit.start)
+                    + " (" + reason + "), " + freed + " bytes");
+            return freed;
+        } catch (RuntimeException e) {
+            logger.error("Failed to delete " + unit.kind + " of '" + unit.session + "' from " + Instant.ofEpochMilli(unit.start), e);
+            return 0;
+        }
+    }
+
+    private List<Unit> audioUnits() {
+        List<Unit> units = new ArrayList<>();
+        for(String key : audioStore.keys()) {
+            audioStore.findExpirable(key, Instant.ofEpochMilli(Long.MAX_VALUE)).forEach(range -> units.add(new Unit(
+                    key,
+                    "audio",
+                    range.getStart(),
+                    range.getEnd(),
+                    () -> audioStore.delete(key, range.getStart())
+            )));
+        }
+        return units;
+    }
+
+    /*
+        Closed ACMI segments of every session, data/<session>/acmi. A segment ends where the next starts. The last
+        may still be being written, it's closed once it hasn't been written to for longer than a connection lasts,
+        ending when it was last written to. Its index and checkpoints are deleted with it, never on their own.
+     */
+    static List<Unit> acmiUnits(Path acmiDataDir, long now) {
+        if(!Files.isDirectory(acmiDataDir)) {
+            return List.of();
+        }
+        try (Stream<Path> sessions = Files.list(acmiDataDir)) {
+            List<Unit> units = new ArrayList<>();
+            for(Path session : sessions.filter(s -> Files.isDirectory(s.resolve("acmi"))).collect(Collectors.toList())) {
+                List<Path> files;
+                try (Stream<Path> list = Files.list(session.resolve("acmi"))) {
+                    files = list.filter(AcmiIndex::isSegment).sorted().collect(Collectors.toList());
+                }
+                for(int i = 0; i < files.size(); i++) {
+                    Path file = files.get(i);
+                    long end;
+                    if(i < files.size() - 1) {
+                        end = AcmiFileWriter.fromFileName(files.get(i + 1).getFileName().toString()).toEpochMilli();
+                    } else {
+                        end = Files.getLastModifiedTime(file).toMillis();
+                        if(end > now - TacviewRecorder.CONNECTION_PERIOD.toMillis()) {
+                            break; // still recording
+                        }
+                    }
+                    units.add(new Unit(
+                            session.getFileName().toString(),
+                            "acmi",
+                            AcmiFileWriter.fromFileName(file.getFileName().toString()).toEpochMilli(),
+                            end,
+                            () -> deleteSegment(file)
+                    ));
+                }
+            }
+            return units;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The segment's index and checkpoints first, so that none are left behind without it
+    private static long deleteSegment(Path segment) {
+        try {
+            long size = 0;
+            for(Path file : List.of(AcmiIndex.indexFile(segment), AcmiCheckpoints.checkpointFile(segment), segment)) {
+                if(Files.exists(file)) {
+                    size += Files.size(file);
+                    Files.delete(file);
+                }
+            }
+            return size;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Bytes of the files under dir, allowing for files deleted while walking.
+     */
+    static long sizeOf(Path dir) {
+        if(!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.mapToLong(p -> {
+                try {
+                    return Files.isRegularFile(p) ? Files.size(p) : 0;
+                } catch (IOException e) {
+                    return 0; // deleted since listed
+                }
+            }).sum();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static class Unit {
+        private final String session;
+        private final String kind;
+        private final long start;
+        private final long end;
+        private final LongSupplier delete;
+
+        Unit(String session, String kind, long start, long end, LongSupplier delete) {
+            this.session = session;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.delete = delete;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        long delete() {
+            return delete.getAsLong();
+        }
+    }
+}
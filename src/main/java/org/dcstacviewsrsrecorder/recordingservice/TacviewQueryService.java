@@ -1,30 +1,71 @@
 package org.dcstacviewsrsrecorder.recordingservice;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.dcstacviewsrsrecorder.tacview.AcmiCheckpoints;
 import org.dcstacviewsrsrecorder.tacview.AcmiFileWriter;
+import org.dcstacviewsrsrecorder.tacview.AcmiIndex;
+import org.dcstacviewsrsrecorder.tacview.AcmiLineReader;
 import org.dcstacviewsrsrecorder.tacview.AcmiStreamSplicer;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
 
+import javax.annotation.PreDestroy;
+
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
-import java.util.Spliterator;
-import java.util.Spliterators;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 @Service
 public class TacviewQueryService {
+    static final long DISK_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    private final Path dir;
+    // Query results by recordings, range and version, least recently used evicted past the budget, deleted when evicted
+    private final Cache<String, Path> results;
+
+    public TacviewQueryService() {
+        this(Path.of(System.getProperty("java.io.tmpdir"), "recorder-tacview"), DISK_BUDGET_BYTES);
+    }
+
+    TacviewQueryService(Path dir, long budgetBytes) {
+        this.dir = dir;
+        this.results = Caffeine.newBuilder()
+                .maximumWeight(budgetBytes)
+                .weigher((String key, Path result) -> {
+                    try {
+                        return (int) Math.min(Integer.MAX_VALUE, Files.size(result));
+                    } catch (IOException e) {
+                        return 0;
+                    }
+                })
+                .executor(Runnable::run) // delete synchronously on removal
+                .removalListener((String key, Path result, RemovalCause cause) -> {
+                    if(result != null) {
+                        try {
+                            Files.deleteIfExists(result);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                })
+                .build();
+        deleteAll(); // left by a previous run
+    }
 
     public List<Interval<Instant>> intervals(Path acmiDataDir, Instant from, Instant until) {
         try {
@@ -34,8 +75,8 @@ public class TacviewQueryService {
             );
             Path dir = acmiDataDir;
 
-            List<Interval<Instant>> intervals = Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile())).sorted())
-                    .zipWith(Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile())).sorted())
+            List<Interval<Instant>> intervals = Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile() && AcmiIndex.isSegment(path))).sorted())
+                    .zipWith(Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile() && AcmiIndex.isSegment(path))).sorted())
                             .skip(1).concatWith(Mono.just(Path.of(AcmiFileWriter.toFileName("", Instant.now())))))
                     .map(files -> {
                         return Interval.between(
@@ -55,8 +96,62 @@ public class TacviewQueryService {
         }
     }
 
-    // TODO - cache
-    public Path query(Path acmiDataDir, Instant from, Instant until, String zipEntryFilename) {
+    /*
+        Changes whenever a recording in the range is added to or written to, a strong ETag for the query's result as
+        it's written the same way each time.
+     */
+    public String version(Path acmiDataDir, Instant from, Instant until) {
+        try {
+            long hash = 17;
+            List<Path> files = files(acmiDataDir, Interval.between(from, until));
+            for(Path file : files) {
+                hash = 31 * (31 * hash + file.getFileName().toString().hashCode()) + Files.size(file);
+            }
+            return files.size() + "-" + Long.toHexString(hash);
+        } catch (NoSuchFileException e) {
+            return "0";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        The recordings from from until until spliced into one, in a ZIP, kept for repeated downloads until the
+        recordings change or it is evicted. Opened, so it can be read even if it is evicted before it is.
+     */
+    public Result query(Path acmiDataDir, Instant from, Instant until, String zipEntryFilename) {
+        String key = acmiDataDir + "/" + zipEntryFilename + "/" + from.toEpochMilli() + "-" + until.toEpochMilli() + "@" + version(acmiDataDir, from, until);
+        while(true) {
+            // Opened as it's spliced, before it can be evicted, as one over the budget is evicted straight away
+            FileChannel[] spliced = new FileChannel[]{ null };
+            Path path = results.get(key, k -> {
+                Path result = splice(acmiDataDir, from, until, zipEntryFilename);
+                spliced[0] = open(result);
+                return result;
+            });
+            try {
+                FileChannel channel = spliced[0] != null ? spliced[0] : open(path);
+                return new Result(channel, channel.size());
+            } catch (UncheckedIOException e) {
+                if(!(e.getCause() instanceof NoSuchFileException)) {
+                    throw e;
+                }
+                results.asMap().remove(key, path); // evicted since it was looked up
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static FileChannel open(Path result) {
+        try {
+            return FileChannel.open(result, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path splice(Path acmiDataDir, Instant from, Instant until, String zipEntryFilename) {
 
         Interval<Instant> interval = Interval.between(
                 from,
@@ -64,50 +159,45 @@ public class TacviewQueryService {
         );
 
         try {
-            Path dir = acmiDataDir;
-            List<Path> filesToQuery = Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile())).sorted())
-                    .zipWith(Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile())).sorted())
-                            .skip(1).concatWith(Mono.just(Path.of(AcmiFileWriter.toFileName("", Instant.now())))))
-                    .filter(files -> {
-                        Interval<Instant> i = Interval.between(
-                                AcmiFileWriter.fromFileName(files.getT1().getFileName().toString()),
-                                AcmiFileWriter.fromFileName(files.getT2().getFileName().toString())
-                        );
-                        return i.intersects(interval);
-                    }).map(Tuple2::getT1).toStream().collect(Collectors.toList());
+            // Each read up to the first indexed timestamp after the interval, and none after that
+            List<Path> filesToQuery = files(acmiDataDir, interval);
+            List<Long> ends = new ArrayList<>();
+            for(Path file : filesToQuery) {
+                long end = AcmiIndex.read(file).after(until.toEpochMilli());
+                ends.add(end);
+                if(end >= 0) {
+                    break;
+                }
+            }
+            // The first read on from its last checkpoint at or before the interval, if it has one
+            AcmiCheckpoints.Checkpoint checkpoint = filesToQuery.isEmpty() ? null : AcmiCheckpoints.floor(filesToQuery.get(0), from.toEpochMilli());
 
-            Path temp = Files.createTempFile("tacview","");
+            Files.createDirectories(dir);
+            Path temp = Files.createTempFile(dir, "tacview", ".zip");
 
             try(
                     OutputStream os = Files.newOutputStream(temp);
                     ZipOutputStream zos = new ZipOutputStream(os);
-                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(zos))
+                    BufferedOutputStream out = new BufferedOutputStream(zos)
             ) {
                 ZipEntry zipEntry = new ZipEntry(zipEntryFilename);
+                zipEntry.setTime(from.toEpochMilli()); // rather than now, for the same bytes each time
                 zos.putNextEntry(zipEntry);
 
                 AcmiStreamSplicer acmiStreamSplicer = new AcmiStreamSplicer(interval);
-                filesToQuery.stream().flatMap(p -> {
-                    try {
-                        FileInputStream is = new FileInputStream(p.toFile());
-                        Scanner scanner = new Scanner(new InputStreamReader(is, StandardCharsets.UTF_8));
-                        scanner.useDelimiter("(?<!\\\\)\\n");
-
-                        return streamScanner(scanner);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                if(checkpoint != null) {
+                    acmiStreamSplicer.restore(checkpoint.getState());
+                }
+                for(int i = 0; i < ends.size() && !acmiStreamSplicer.isCompleted(); i++) {
+                    long start = i == 0 && checkpoint != null ? checkpoint.getOffset() : 0;
+                    try (AcmiLineReader reader = AcmiLineReader.open(filesToQuery.get(i), start, ends.get(i))) {
+                        while(reader.next() && !acmiStreamSplicer.isCompleted()) {
+                            acmiStreamSplicer.apply(reader.array(), reader.start(), reader.length(), out);
+                        }
                     }
-                })
-                        .flatMap(l -> acmiStreamSplicer.apply(l).stream().map(i -> i + "\n"))
-                        .forEach(l -> {
-                            try {
-                                writer.write(l);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-
-                writer.flush();
+                }
+
+                out.flush();
             }
 
             return temp;
@@ -116,9 +206,95 @@ public class TacviewQueryService {
         }
     }
 
-    public Stream<String> streamScanner(final Scanner scanner) {
-        final Spliterator<String> splt = Spliterators.spliterator(scanner, Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
-        return StreamSupport.stream(splt, false)
-                .onClose(scanner::close);
+    /*
+        Recordings with any of the interval, each lasting until the next starts.
+     */
+    private List<Path> files(Path acmiDataDir, Interval<Instant> interval) throws IOException {
+        Path dir = acmiDataDir;
+        return Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile() && AcmiIndex.isSegment(path))).sorted())
+                .zipWith(Flux.fromStream(Files.find(dir, 1, ((path, basicFileAttributes) -> basicFileAttributes.isRegularFile() && AcmiIndex.isSegment(path))).sorted())
+                        .skip(1).concatWith(Mono.just(Path.of(AcmiFileWriter.toFileName("", Instant.now())))))
+                .filter(files -> {
+                    Interval<Instant> i = Interval.between(
+                            AcmiFileWriter.fromFileName(files.getT1().getFileName().toString()),
+                            AcmiFileWriter.fromFileName(files.getT2().getFileName().toString())
+                    );
+                    return i.intersects(interval);
+                }).map(Tuple2::getT1).toStream().collect(Collectors.toList());
+    }
+
+    @PreDestroy
+    public void close() {
+        results.invalidateAll();
+        deleteAll();
+    }
+
+    private void deleteAll() {
+        if(!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        An opened query result. Its stream must be closed.
+     */
+    public static class Result {
+        private final FileChannel channel;
+        private final long length;
+
+        Result(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public InputStream getInputStream() {
+            return getInputStream(0, length);
+        }
+
+        /*
+            The stream, reading the bytes from start until end instead of the whole result.
+         */
+        public InputStream getInputStream(long start, long end) {
+            return new InputStream() {
+                private long position = start;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if(len == 0) {
+                        return 0;
+                    }
+                    if(position >= end) {
+                        return -1;
+                    }
+                    int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                    if(read > 0) {
+                        position += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
     }
 }
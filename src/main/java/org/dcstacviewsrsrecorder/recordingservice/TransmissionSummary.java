@@ -0,0 +1,138 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Transmissions in one packet log segment: runs of a label's packets no more than TOLERANCE_MILLIS apart,
+    each packet taken to last PACKET_MILLIS.
+
+    Maintained in memory as packets are appended and written to a sidecar file when the segment is sealed,
+    so the chart reads a few rows per transmission instead of every packet.
+ */
+class TransmissionSummary {
+    static final long PACKET_MILLIS = 40; // packets are generally 40ms
+    static final long TOLERANCE_MILLIS = 200;
+    static final int ENTRY_BYTES = 24; // [label id:int][start:long][end:long][packet count:int]
+
+    private final List<Run> closed = new ArrayList<>();
+    private final Map<Integer, Run> open = new HashMap<>();
+
+    synchronized void add(int labelId, long timestamp) {
+        Run run = open.get(labelId);
+        if(run != null && run.end >= timestamp - TOLERANCE_MILLIS) {
+            run.start = Math.min(run.start, timestamp);
+            run.end = Math.max(run.end, timestamp + PACKET_MILLIS);
+            run.packetCount++;
+        } else {
+            if(run != null) {
+                closed.add(run);
+            }
+            open.put(labelId, new Run(labelId, timestamp, timestamp + PACKET_MILLIS, 1));
+        }
+    }
+
+    /*
+        Copies of the runs overlapping [from, until].
+     */
+    synchronized List<Run> runs(long from, long until) {
+        return Stream.concat(closed.stream(), open.values().stream())
+                .filter(r -> r.start <= until && r.end >= from)
+                .map(Run::copy)
+                .collect(Collectors.toList());
+    }
+
+    synchronized long memoryBytes() {
+        return (closed.size() + open.size()) * 48L;
+    }
+
+    synchronized void write(Path file) throws IOException {
+        List<Run> runs = runs(Long.MIN_VALUE, Long.MAX_VALUE);
+        runs.sort(Comparator.comparingLong(r -> r.start));
+
+        ByteBuffer buffer = ByteBuffer.allocate(runs.size() * ENTRY_BYTES);
+        runs.forEach(r -> buffer.putInt(r.labelId).putLong(r.start).putLong(r.end).putInt(r.packetCount));
+        buffer.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+        Runs overlapping [from, until] from a sealed segment's sidecar file.
+     */
+    static List<Run> read(Path file, long from, long until) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Run> runs = new ArrayList<>();
+        while(buffer.remaining() >= ENTRY_BYTES) {
+            Run run = new Run(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+            if(run.start > until) {
+                break; // sorted by start
+            }
+            if(run.end >= from) {
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /*
+        Joins runs of the same label that continue across segments, the same way packets are merged.
+     */
+    static List<Run> merge(List<Run> runs) {
+        Map<Integer, LinkedList<Run>> byLabel = new HashMap<>();
+        runs.stream()
+                .sorted(Comparator.comparingLong(r -> r.start))
+                .forEach(next -> {
+                    LinkedList<Run> merged = byLabel.computeIfAbsent(next.labelId, id -> new LinkedList<>());
+                    Run last = merged.peekLast();
+                    if(last != null && last.end >= next.start - TOLERANCE_MILLIS) {
+                        last.end = Math.max(last.end, next.end);
+                        last.packetCount += next.packetCount;
+                    } else {
+                        merged.add(next.copy());
+                    }
+                });
+        return byLabel.values().stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparingLong(r -> r.start))
+                .collect(Collectors.toList());
+    }
+
+    static class Run {
+        final int labelId;
+        long start;
+        long end;
+        int packetCount;
+
+        Run(int labelId, long start, long end, int packetCount) {
+            this.labelId = labelId;
+            this.start = start;
+            this.end = end;
+            this.packetCount = packetCount;
+        }
+
+        Run copy() {
+            return new Run(labelId, start, end, packetCount);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.dcstacviewsrsrecorder.recordingservice.web;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+
+import java.util.List;
+import java.util.Optional;
+
+/*
+    If-None-Match, If-Range and Range for downloads with strong ETags.
+    https://datatracker.ietf.org/doc/html/rfc7232 https://datatracker.ietf.org/doc/html/rfc7233
+ */
+public class ConditionalRequests {
+
+    /*
+        Whether the client's copy is tag, by If-None-Match, compared weakly as for a GET.
+     */
+    public static boolean notModified(HttpHeaders headers, String tag) {
+        try {
+            return headers.getIfNoneMatch().stream()
+                    .anyMatch(t -> t.equals("*") || t.replaceFirst("^W/", "").equals(quoted(tag)));
+        } catch (IllegalArgumentException e) {
+            return false; // malformed, ignored
+        }
+    }
+
+    /*
+        The range requested, unless If-Range is another version, or the Range header is malformed or asks for
+        several ranges, which are served whole.
+     */
+    public static Optional<HttpRange> range(HttpHeaders headers, String tag) {
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        if(ifRange != null && !ifRange.equals(quoted(tag))) {
+            return Optional.empty();
+        }
+        try {
+            List<HttpRange> ranges = headers.getRange();
+            return ranges.size() == 1 ? Optional.of(ranges.get(0)) : Optional.empty();
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static String quoted(String tag) {
+        return "\"" + tag + "\"";
+    }
+}
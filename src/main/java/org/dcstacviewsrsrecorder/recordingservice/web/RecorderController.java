@@ -1,18 +1,17 @@
 package org.dcstacviewsrsrecorder.recordingservice.web;
 
-import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
-import org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions;
-import org.dcstacviewsrsrecorder.opus.OpusFiles;
+import org.dcstacviewsrsrecorder.recordingservice.AudioArchiveService;
 import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.dcstacviewsrsrecorder.recordingservice.ExportCache;
 import org.dcstacviewsrsrecorder.recordingservice.TacviewQueryService;
 import org.dcstacviewsrsrecorder.srs.RadioReceiver;
 import org.dcstacviewsrsrecorder.tacview.TacviewRecorder;
-import org.gagravarr.opus.OpusAudioData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -20,28 +19,25 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.Disposable;
 import reactor.netty.Connection;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.ShortBuffer;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.decodePaddingWithSilence;
-import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.radioEffectFilter;
-
 @Controller
 public class RecorderController {
     private final Logger logger = LoggerFactory.getLogger(RecorderController.class);
@@ -49,6 +45,12 @@ public class RecorderController {
     @Autowired
     AudioStore audioStore;
 
+    @Autowired
+    ExportCache exportCache;
+
+    @Autowired
+    AudioArchiveService audioArchiveService;
+
     @Autowired
     TacviewQueryService tacviewQueryService;
 
@@ -68,7 +70,7 @@ public class RecorderController {
 
         RadioReceiver radioReceiver = new RadioReceiver(
                 Arrays.stream(frequency.split(",")).map(Double::parseDouble).collect(Collectors.toList())
-                , p -> audioStore.save(id, p)
+                , p -> audioStore.saveAsync(id, p)
         );
         byKey.computeIfAbsent(id, i -> new HashSet<>()).add(radioReceiver);
         radioReceiver.connect(
@@ -111,17 +113,15 @@ public class RecorderController {
 
         model.addAttribute("baseUrl", "/record/" + id);
 
-        List<String> labels = audioStore.findAll(id, AviationDateTimeFormat.parse(from.get()), AviationDateTimeFormat.parse(until.get()), s -> s.map(AudioStore.Packet::getLabel).distinct().collect(Collectors.toList()));
-        Map<String, List<Interval>> byLabel = labels.stream()
-                .map(label -> audioStore.findAllForFrequency(id, label, AviationDateTimeFormat.parse(from.get()), AviationDateTimeFormat.parse(until.get()), s ->
-                        Map.entry(
-                                label,
-                                s.map(packet -> new Interval(
-                                        Instant.ofEpochMilli(packet.getTimestamp()),
-                                        Instant.ofEpochMilli(packet.getTimestamp() + 40)) //packets are generally 40ms
-                                ).collect(mergeIntervals())
+        Map<String, List<Interval>> byLabel = audioStore.findTransmissions(id, AviationDateTimeFormat.parse(from.get()), AviationDateTimeFormat.parse(until.get()))
+                .stream()
+                .collect(Collectors.groupingBy(
+                        AudioStore.Transmission::getLabel,
+                        Collectors.mapping(
+                                t -> new Interval(Instant.ofEpochMilli(t.getStart()), Instant.ofEpochMilli(t.getEnd())),
+                                Collectors.toList()
                         )
-                )).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                ));
 
         UriComponentsBuilder builder = UriComponentsBuilder.fromPath("/record/" + id + "/download/" + id + "_{frequency}_" + from.get() + "_" + until.get() + ".ogg");
 
@@ -174,84 +174,174 @@ public class RecorderController {
     }
 
     @GetMapping(value = "/record/{id}/download/{id}_{label}_{from}_{until}.ogg", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    ResponseEntity<Resource> download(
+    ResponseEntity<StreamingResponseBody> download(
             @PathVariable String id,
             @PathVariable String label,
             @PathVariable("from") String fromString,
-            @PathVariable("until") String untilString
+            @PathVariable("until") String untilString,
+            @RequestParam(defaultValue = "true") boolean radioEffect,
+            @RequestParam(defaultValue = "false") boolean narrowband,
+            @RequestHeader HttpHeaders headers
     ) {
         Instant from = AviationDateTimeFormat.parse(fromString);
         Instant until = AviationDateTimeFormat.parse(untilString);
 
-        Resource resource = audioStore.findAllForFrequency(id, label, from, until, s -> {
+        // Checked before opening, so a current copy costs no render, even once the export is evicted
+        String tag = exportCache.tag(id, label, from, until, radioEffect, narrowband);
+        if(ConditionalRequests.notModified(headers, tag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).build();
+        }
+
+        //https://tacview.fandom.com/wiki/Synchronized_Audio/Video_Playback
+        logger.warn("Starting ogg export");
+        ExportCache.Export export = exportCache.open(id, label, from, until, radioEffect, narrowband);
+
+        Optional<HttpRange> range = ConditionalRequests.range(headers, export.getTag());
+        if(range.isPresent()) {
+            return partial(export, range.get());
+        }
+
+        // Chunked while the export is still being rendered. Streamed, not a Resource, so that Spring doesn't range it
+        // again when the range was declined.
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(export.getTag())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if(export.getLength() >= 0) {
+            response.contentLength(export.getLength());
+        }
+        return response.body(body(export.getInputStream()));
+    }
+
+    /*
+        A range of an export, once it has been rendered and its length is known.
+     */
+    private ResponseEntity<StreamingResponseBody> partial(ExportCache.Export export, HttpRange range) {
+        long length = -1;
+        long start;
+        long end;
+        try {
+            length = export.awaitLength();
+            start = range.getRangeStart(length);
+            end = range.getRangeEnd(length);
+        } catch (IOException | IllegalArgumentException e) {
             try {
-                //TODO - may need to manually delete
-                File outFile = File.createTempFile("ogg", null);
-
-                //https://tacview.fandom.com/wiki/Synchronized_Audio/Video_Playback
-                logger.warn("Starting ogg export");
-
-                if(label.startsWith("discord")) {
-                    Function<ShortBuffer, ShortBuffer> radioEffectFilter = radioEffectFilter();
-                    decodePaddingWithSilence(
-                            s,
-                            from.toEpochMilli(),
-                            until.toEpochMilli(),
-                            StandardAudioDataFormats.DISCORD_OPUS,
-                            radioEffectFilter::apply,
-                            audioFrameStream -> {
-                                OpusFiles.toFile(
-                                        outFile,
-                                        audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
-                                );
-
-                                return null;
-                            }
-                    );
-
-                    return new FileSystemResource(outFile);
-                } else {
-                    Function<ShortBuffer, ShortBuffer> radioEffectFilter = radioEffectFilter();
-                    decodePaddingWithSilence(
-                            s,
-                            from.toEpochMilli(),
-                            until.toEpochMilli(),
-                            LavaFunctions.SRS_OPUS,
-                            radioEffectFilter::apply,
-                            audioFrameStream -> {
-                                OpusFiles.toFile(
-                                        outFile,
-                                        audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
-                                );
-                                return null;
-                            }
-                    );
-
-                    return new FileSystemResource(outFile);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                export.getInputStream().close();
+            } catch (IOException closing) {
+                logger.warn("Failed to close export", closing);
             }
-        });
+            if(e instanceof IOException) {
+                throw new UncheckedIOException((IOException) e);
+            }
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length) // as rendered, unknown when opened
+                    .build();
+        }
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .eTag(export.getTag())
+                .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length)
+                .contentLength(end - start + 1)
+                .body(body(export.getInputStream(start, end + 1)));
+    }
 
-        return ResponseEntity.ok(resource);
+    // Closed once written, or if writing fails
+    private static StreamingResponseBody body(InputStream in) {
+        return out -> {
+            try (in) {
+                in.transferTo(out);
+            }
+        };
     }
 
-    @GetMapping(value = "/record/{id}/download/Tacview-{from:[0-9]+}-{until:[0-9]+}-{id}.zip.acmi", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    ResponseEntity<Resource> downloadTacview(
+    @GetMapping(value = "/record/{id}/download/{id}_{from}_{until}.zip", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    ResponseEntity<StreamingResponseBody> downloadAll(
+            @PathVariable String id,
+            @PathVariable("from") String fromString,
+            @PathVariable("until") String untilString,
+            @RequestParam(defaultValue = "true") boolean radioEffect,
+            @RequestParam(defaultValue = "false") boolean narrowband
+    ) {
+        Instant from = AviationDateTimeFormat.parse(fromString);
+        Instant until = AviationDateTimeFormat.parse(untilString);
+
+        logger.warn("Starting ogg bundle export");
+        return ResponseEntity.ok(out -> exportCache.bundle(
+                id,
+                from,
+                until,
+                radioEffect,
+                narrowband,
+                label -> id + "_" + label + "_" + fromString + "_" + untilString + ".ogg",
+                out
+        ));
+    }
+
+    /*
+        Labels mixed into one Ogg, all labels with audio in the range unless given, mono or each panned in stereo.
+     */
+    @GetMapping(value = "/record/{id}/mixdown/{id}_{from}_{until}.ogg", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    ResponseEntity<StreamingResponseBody> mixdown(
             @PathVariable String id,
             @PathVariable("from") String fromString,
-            @PathVariable("until") String untilString
+            @PathVariable("until") String untilString,
+            @RequestParam Optional<List<String>> label,
+            @RequestParam(defaultValue = "false") boolean stereo
     ) {
         Instant from = AviationDateTimeFormat.parse(fromString);
         Instant until = AviationDateTimeFormat.parse(untilString);
+        List<String> labels = label.orElseGet(() -> audioStore.findLabels(id, from, until).stream()
+                .map(AudioStore.LabelSummary::getLabel)
+                .collect(Collectors.toList()));
+
+        logger.warn("Starting ogg mixdown of " + labels);
+        return ResponseEntity.ok(out -> audioArchiveService.mixdown(id, labels, from, until, stereo, out));
+    }
+
+    @GetMapping(value = "/record/{id}/download/Tacview-{from:[0-9]+}-{until:[0-9]+}-{id}.zip.acmi", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    ResponseEntity<StreamingResponseBody> downloadTacview(
+            @PathVariable String id,
+            @PathVariable("from") String fromString,
+            @PathVariable("until") String untilString,
+            @RequestHeader HttpHeaders headers
+    ) throws IOException {
+        Instant from = AviationDateTimeFormat.parse(fromString);
+        Instant until = AviationDateTimeFormat.parse(untilString);
 
         String fileName = "Tacview-" + fromString + "-" + untilString + "-" + id + ".zip.acmi";
         String zipEntryFilename = fileName.replace(".zip.acmi", ".txt.acmi");
 
-        Path path = tacviewQueryService.query(Path.of("data/" + id + "/acmi"), from, until, zipEntryFilename);
+        Path acmiDataDir = Path.of("data/" + id + "/acmi");
+        String tag = tacviewQueryService.version(acmiDataDir, from, until);
+        if(ConditionalRequests.notModified(headers, tag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).build();
+        }
+
+        // Opened, so it's served whole even if evicted while it's being written
+        TacviewQueryService.Result result = tacviewQueryService.query(acmiDataDir, from, until, zipEntryFilename);
 
-        return ResponseEntity.ok(new FileSystemResource(path));
+        Optional<HttpRange> range = ConditionalRequests.range(headers, tag);
+        if(range.isPresent()) {
+            long start;
+            long end;
+            try {
+                start = range.get().getRangeStart(result.getLength());
+                end = range.get().getRangeEnd(result.getLength());
+            } catch (IllegalArgumentException e) {
+                result.getInputStream().close();
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + result.getLength())
+                        .build();
+            }
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .eTag(tag)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + result.getLength())
+                    .contentLength(end - start + 1)
+                    .body(body(result.getInputStream(start, end + 1)));
+        }
+        return ResponseEntity.ok()
+                .eTag(tag)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentLength(result.getLength())
+                .body(body(result.getInputStream()));
     }
 
     @PostMapping("/record/{id}/tacview/cancel")
@@ -314,27 +404,4 @@ public class RecorderController {
             return end;
         }
     }
-
-    public static Collector<Interval, ?, List<Interval>> mergeIntervals() {
-        Collector<Interval, ?, List<Interval>> collector = Collector.of(
-                () -> new LinkedList<Interval>(),
-                (deque, next) ->  {
-                    Interval last = deque.peekLast();
-                    int tolerance = 200;
-                    if(last != null && last.getEnd().toEpochMilli() >= next.getStart().toEpochMilli() - tolerance) {
-                        deque.pollLast();
-                        deque.add(new Interval(last.getStart(), Instant.ofEpochMilli(next.getEnd().toEpochMilli())));
-
-                    } else {
-                        deque.add(next);
-                    }
-                },
-                (dequeA, dequeB) -> {
-                    throw new IllegalStateException("Must be accumulated serially, in order");
-                },
-                deque -> deque
-        );
-
-        return collector;
-    }
 }
@@ -142,13 +142,14 @@ public class RadioReceiver {
                             .doAfterTerminate(() -> logger.warn("UDP IN terminated"))
                             //.doOnEach(p -> logger.warn("UDP IN message"))
                             .subscribe(s -> {
+                                long receivedAt = System.currentTimeMillis();
                                 DatagramPacket p = (DatagramPacket) s;
                                 ((DatagramPacket) s).retain();
                                 byte[] b = Unpooled.copiedBuffer(p.content()).array();
                                 p.release();
 
                                 if (b.length > 22 /* not a udp ping */) {
-                                    UdpVoicePacket udpVoicePacket = new UdpVoicePacket(Unpooled.copiedBuffer(p.content()).array());
+                                    UdpVoicePacket udpVoicePacket = new UdpVoicePacket(b, receivedAt);
                                     consumer.accept(udpVoicePacket);
                                 }
                             });
@@ -13,9 +13,16 @@ import java.util.List;
 public class UdpVoicePacket {
 
     private final byte[] buffer;
+    // Epoch milli the datagram was received, or the packet created
+    private final long receivedAt;
 
     public UdpVoicePacket(byte[] bytes) {
+        this(bytes, System.currentTimeMillis());
+    }
+
+    public UdpVoicePacket(byte[] bytes, long receivedAt) {
         this.buffer = bytes;
+        this.receivedAt = receivedAt;
     }
 
     public UdpVoicePacket(
@@ -28,6 +35,7 @@ public class UdpVoicePacket {
             byte[] clientGuid
     ) {
         buffer = new byte[6 /* header bytes*/ + audioData.length + (frequencies.size() * 10) + 57];
+        receivedAt = System.currentTimeMillis();
 
         //packet length
         writeBytes(buffer.length, buffer, 0, 2);
@@ -79,6 +87,10 @@ public class UdpVoicePacket {
         return buffer;
     }
 
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
     public InputStream getInputStream() {
         return new ByteArrayInputStream(buffer, 0, packetLength());
     }
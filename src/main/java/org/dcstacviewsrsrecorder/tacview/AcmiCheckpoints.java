@@ -0,0 +1,161 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+    Checkpoints of the state of a recorded segment, written beside it as it is recorded: Tacview-...-DCS-<title>.acmc
+    beside Tacview-...-DCS-<title>.txt.acmi. Beside rather than in it, so the segment stays a plain recording.
+
+    Entries of [time:long][offset:long][length:int] then the state as ACMI (see AcmiStreamSplicer.checkpoint), taken
+    at the 0,Event=RecordingTimestamp| line of time at byte offset of the segment, of everything before that line.
+    So a splice can restore the last checkpoint before its start and read on from its offset, rather than from the
+    start of the segment. Held until the segment is flushed then appended, like the index, so that a checkpoint never
+    points past what has been written.
+ */
+public class AcmiCheckpoints {
+    static final long CHECKPOINT_INTERVAL_MILLIS = 60_000;
+    static final long CHECKPOINT_INTERVAL_BYTES = 16 * 1024 * 1024;
+    static final int CHECKPOINT_HEADER_BYTES = 20;
+
+    private static final String CHECKPOINT_SUFFIX = ".acmc";
+
+    public static Path checkpointFile(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return segment.resolveSibling(fileName.substring(0, fileName.length() - AcmiIndex.SEGMENT_SUFFIX.length()) + CHECKPOINT_SUFFIX);
+    }
+
+    /*
+        The last checkpoint of the segment taken at or before millis, or null if there is none.
+     */
+    public static Checkpoint floor(Path segment, long millis) {
+        try(FileChannel channel = FileChannel.open(checkpointFile(segment), StandardOpenOption.READ)) {
+            long size = channel.size(); // entries after may still be being written
+            ByteBuffer header = ByteBuffer.allocate(CHECKPOINT_HEADER_BYTES);
+            long found = -1;
+            long time = 0;
+            long offset = 0;
+            int length = 0;
+            for(long position = 0; position + CHECKPOINT_HEADER_BYTES <= size; ) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                long t = header.getLong();
+                long o = header.getLong();
+                int l = header.getInt();
+                if(t > millis || position + CHECKPOINT_HEADER_BYTES + l > size) {
+                    break;
+                }
+                found = position;
+                time = t;
+                offset = o;
+                length = l;
+                position += CHECKPOINT_HEADER_BYTES + l;
+            }
+            if(found < 0) {
+                return null;
+            }
+
+            ByteBuffer state = ByteBuffer.allocate(length);
+            while(state.hasRemaining()) {
+                channel.read(state, found + CHECKPOINT_HEADER_BYTES + state.position());
+            }
+            return new Checkpoint(time, offset, new String(state.array(), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static class Checkpoint {
+        private final long time;
+        private final long offset;
+        private final String state;
+
+        Checkpoint(long time, long offset, String state) {
+            this.time = time;
+            this.offset = offset;
+            this.state = state;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getState() {
+            return state;
+        }
+    }
+
+    /*
+        Appends checkpoints of a segment, due every checkpointMillis of recording or checkpointBytes of segment,
+        whichever comes first. Written out by flush, once the segment up to them has been.
+     */
+    static class Writer implements AutoCloseable {
+        private final OutputStream file;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(pending);
+        private final long checkpointMillis;
+        private final long checkpointBytes;
+        private long nextMillis = Long.MIN_VALUE;
+        private long nextOffset;
+
+        Writer(Path segment, long checkpointMillis, long checkpointBytes) throws IOException {
+            this.checkpointMillis = checkpointMillis;
+            this.checkpointBytes = checkpointBytes;
+            this.nextOffset = checkpointBytes;
+            file = Files.newOutputStream(
+                    checkpointFile(segment), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            );
+        }
+
+        /*
+            Whether a checkpoint is due at the timestamp millis at offset. The first isn't, replaying from the start
+            of the segment is as cheap.
+         */
+        boolean due(long millis, long offset) {
+            if(nextMillis == Long.MIN_VALUE) {
+                nextMillis = millis + checkpointMillis;
+                return false;
+            }
+            return millis >= nextMillis || offset >= nextOffset;
+        }
+
+        void checkpoint(long millis, long offset, String state) throws IOException {
+            byte[] bytes = state.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(millis);
+            out.writeLong(offset);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            nextMillis = millis + checkpointMillis;
+            nextOffset = offset + checkpointBytes;
+        }
+
+        void flush() throws IOException {
+            pending.writeTo(file);
+            pending.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (file) {
+                flush();
+            }
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package org.dcstacviewsrsrecorder.tacview;
 
-import java.io.BufferedWriter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -23,12 +29,27 @@ import java.util.stream.Stream;
     Creates and writes to file.
 
     File naming based on tacview convention from stream metadata.
+    Indexes the recording timestamps as it writes them, see AcmiIndex, and checkpoints the state of the recording,
+    see AcmiCheckpoints.
  */
 public class AcmiFileWriter implements AutoCloseable {
 
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
     private final Path dir;
+    private final long checkpointMillis;
+    private final long checkpointBytes;
     private Path file = null;
-    private BufferedWriter writer;
+    private OutputStream writer;
+    private AcmiIndex.Writer index;
+    private AcmiCheckpoints.Writer checkpoints;
+    private long position; // bytes written
+    // State of the recording so far, from whole lines, as a splice reads them
+    private final AcmiStreamSplicer state = AcmiStreamSplicer.aggregator();
+    // Checkpoints are taken on the ingest thread, as the recording is written
+    private final Timer checkpointTimer = Metrics.timer("recorder.acmi.checkpoints");
+    private final StringBuilder line = new StringBuilder();
+    private boolean checkpointing = true;
     // Meta data from stream for filename
     private Instant recordingTime = null;
     private String title = null;
@@ -36,6 +57,7 @@ public class AcmiFileWriter implements AutoCloseable {
     private LinkedList<String> buffer = new LinkedList<>();
 
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String RECORDING_TIMESTAMP = "0,Event=RecordingTimestamp|";
     private static final Pattern instantInFileName = Pattern.compile("Tacview-(.*)-DCS.*");
 
     public static Instant fromFileName(String fileName) {
@@ -52,7 +74,13 @@ public class AcmiFileWriter implements AutoCloseable {
     }
 
     public AcmiFileWriter(Path dir) {
+        this(dir, AcmiCheckpoints.CHECKPOINT_INTERVAL_MILLIS, AcmiCheckpoints.CHECKPOINT_INTERVAL_BYTES);
+    }
+
+    public AcmiFileWriter(Path dir, long checkpointMillis, long checkpointBytes) {
         this.dir = dir;
+        this.checkpointMillis = checkpointMillis;
+        this.checkpointBytes = checkpointBytes;
     }
 
     public Path getFile() {
@@ -77,39 +105,87 @@ public class AcmiFileWriter implements AutoCloseable {
                     file = dir.resolve(toFileName(title, recordingTime));
                     Files.createDirectories(dir);
                     file.toFile().createNewFile();
-                    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile(), false), StandardCharsets.UTF_8));
-                    Stream.of(buffer.stream(), lines.stream()).flatMap(s -> s).forEach(l -> {
-                        try {
-                            writer.write(l);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                    writer.flush();
+                    writer = new BufferedOutputStream(new FileOutputStream(file.toFile(), false));
+                    index = new AcmiIndex.Writer(file);
+                    checkpoints = new AcmiCheckpoints.Writer(file, checkpointMillis, checkpointBytes);
+                    Stream.of(buffer.stream(), lines.stream()).flatMap(s -> s).forEach(this::write);
+                    flush();
                     buffer = null;
                 } else {
                     buffer.addAll(lines);
                 }
             } else {
-                lines.forEach(l -> {
-                    try {
-                        writer.write(l);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                lines.forEach(this::write);
+                flush(); // Flush with reasonable frequency to keep the file up to date for any readers
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void write(String frame) {
+        try {
+            if(frame.startsWith(RECORDING_TIMESTAMP) && line.length() == 0) {
+                long millis = Long.parseLong(frame.substring(RECORDING_TIMESTAMP.length()).trim());
+                index.timestamp(millis, position);
+                if(checkpointing && checkpoints.due(millis, position)) {
+                    long began = System.nanoTime();
+                    String checkpoint = state.checkpoint();
+                    if(checkpoint != null) {
+                        checkpoints.checkpoint(millis, position, checkpoint);
                     }
-                });
-                writer.flush(); // Flush with reasonable frequency to keep the file up to date for any readers
+                    checkpointTimer.record(Duration.ofNanos(System.nanoTime() - began));
+                }
             }
+            byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+            writer.write(bytes);
+            position += bytes.length;
+            aggregate(frame);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // Frames are split at every newline, lines only at those that aren't escaped
+    private void aggregate(String frame) {
+        line.append(frame);
+        int end = line.length() - 1;
+        if(end < 0 || line.charAt(end) != '\n' || (end > 0 && line.charAt(end - 1) == '\\')) {
+            return;
+        }
+        line.setLength(end);
+        if(checkpointing) {
+            try {
+                state.apply(line.toString());
+            } catch (RuntimeException e) {
+                // The recording carries on, splices of it read from the start
+                logger.warn("Stopped checkpointing " + file + " at unreadable line '" + line + "'", e);
+                checkpointing = false;
+            }
+        }
+        line.setLength(0);
+    }
+
+    // The segment before its index and checkpoints, so that they never point past the segment
+    private void flush() throws IOException {
+        writer.flush();
+        index.flush();
+        checkpoints.flush();
+    }
+
     @Override
     public void close() throws Exception {
         if ( writer != null ) {
             writer.close();
             writer = null;
         }
+        if ( index != null ) {
+            index.close();
+            index = null;
+        }
+        if ( checkpoints != null ) {
+            checkpoints.close();
+            checkpoints = null;
+        }
     }
 }
@@ -0,0 +1,137 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+    Time index of a recorded segment, written beside it as it is recorded: Tacview-...-DCS-<title>.acmx beside
+    Tacview-...-DCS-<title>.txt.acmi.
+
+    Entries of (0,Event=RecordingTimestamp| value, byte offset of that line) about every INDEX_INTERVAL_MILLIS, so a
+    query can find where a time is in a segment by binary search rather than by reading up to it.
+    Held until the segment is flushed then appended, so an entry never points past what has been written. A segment recorded
+    before the index has an empty one.
+ */
+public class AcmiIndex {
+    static final long INDEX_INTERVAL_MILLIS = 1000;
+    static final int INDEX_ENTRY_BYTES = 16;
+
+    static final String SEGMENT_SUFFIX = ".txt.acmi";
+    private static final String INDEX_SUFFIX = ".acmx";
+
+    private final long[] times;
+    private final long[] offsets;
+
+    AcmiIndex(long[] times, long[] offsets) {
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    public static boolean isSegment(Path file) {
+        return file.getFileName().toString().endsWith(SEGMENT_SUFFIX);
+    }
+
+    public static Path indexFile(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return segment.resolveSibling(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    public static AcmiIndex read(Path segment) {
+        try {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile(segment)));
+            int entries = index.limit() / INDEX_ENTRY_BYTES; // the last may still be being written
+            long[] times = new long[entries];
+            long[] offsets = new long[entries];
+            for(int i = 0; i < entries; i++) {
+                times[i] = index.getLong();
+                offsets[i] = index.getLong();
+            }
+            return new AcmiIndex(times, offsets);
+        } catch (NoSuchFileException e) {
+            return new AcmiIndex(new long[0], new long[0]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /*
+        Offset of the last indexed timestamp at or before millis, or -1 if there is none.
+     */
+    public long floor(long millis) {
+        int i = search(millis);
+        return i < 0 ? -1 : offsets[i];
+    }
+
+    /*
+        Offset of the first indexed timestamp after millis, or -1 if there is none, everything from it on is
+        recorded after millis.
+     */
+    public long after(long millis) {
+        int i = search(millis) + 1;
+        return i < times.length ? offsets[i] : -1;
+    }
+
+    // Index of the last entry at or before millis, -1 if none
+    private int search(long millis) {
+        int low = 0;
+        int high = times.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(times[mid] <= millis) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /*
+        Appends entries for a segment's timestamps as they are written, at most one per INDEX_INTERVAL_MILLIS. Written
+        out by flush, once the segment up to them has been.
+     */
+    static class Writer implements AutoCloseable {
+        private final OutputStream file;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(pending);
+        private long next = Long.MIN_VALUE;
+
+        Writer(Path segment) throws IOException {
+            file = Files.newOutputStream(
+                    indexFile(segment), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            );
+        }
+
+        void timestamp(long millis, long offset) throws IOException {
+            if(millis >= next) {
+                out.writeLong(millis);
+                out.writeLong(offset);
+                next = millis + INDEX_INTERVAL_MILLIS;
+            }
+        }
+
+        void flush() throws IOException {
+            pending.writeTo(file);
+            pending.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (file) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+    Reads the lines of a recorded segment from its bytes: split at newlines that aren't escaped by a backslash, as
+    ACMI values may span lines, without decoding or regular expressions.
+
+    Each line is left in the reader's buffer, at array() from start() for length() bytes, until the next is read.
+    line() decodes it for those that need a String. Empty lines are skipped, they carry nothing.
+ */
+public class AcmiLineReader implements AutoCloseable {
+    static final int BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private boolean eof;
+
+    private byte[] buffer = new byte[BUFFER_BYTES];
+    private int filled; // bytes read into the buffer
+    private int next; // start of the next line
+    private int scanned; // up to where the next line has been searched for its end
+    private int start;
+    private int length;
+
+    /*
+        Lines from byte start until byte end of the segment, -1 for its end. start should be the start of a line.
+     */
+    public AcmiLineReader(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end < 0 ? Long.MAX_VALUE : end;
+    }
+
+    public static AcmiLineReader open(Path segment, long start, long end) throws IOException {
+        return new AcmiLineReader(FileChannel.open(segment, StandardOpenOption.READ), start, end);
+    }
+
+    /*
+        Reads the next line, false at the end.
+     */
+    public boolean next() throws IOException {
+        while(true) {
+            for(int i = scanned; i < filled; i++) {
+                if(buffer[i] == '\n' && (i == next || buffer[i - 1] != '\\')) {
+                    start = next;
+                    length = i - next;
+                    next = i + 1;
+                    scanned = next;
+                    if(length > 0) {
+                        return true;
+                    }
+                }
+            }
+            scanned = filled;
+
+            if(eof) {
+                if(next < filled) { // the last line, unterminated
+                    start = next;
+                    length = filled - next;
+                    next = filled;
+                    return true;
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    // Moves the unfinished line to the start of the buffer, growing it for a line longer than it, and reads on
+    private void fill() throws IOException {
+        int unfinished = filled - next;
+        if(next > 0) {
+            System.arraycopy(buffer, next, buffer, 0, unfinished);
+        } else if(unfinished == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, unfinished);
+            buffer = grown;
+        }
+        scanned -= next;
+        filled = unfinished;
+        next = 0;
+
+        int read = channel.read(ByteBuffer.wrap(buffer, filled, (int) Math.min(buffer.length - filled, end - position)), position);
+        if(read <= 0) {
+            eof = true;
+            return;
+        }
+        position += read;
+        filled += read;
+        if(position >= end) {
+            eof = true;
+        }
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public String line() {
+        return new String(buffer, start, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -4,63 +4,137 @@ import org.dcstacviewsrsrecorder.recordingservice.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Duration;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
 
+/*
+    Lines are read as bytes, in place: object ids and property names are looked up without copying them, values are
+    copied into buffers kept per property, and transforms are parsed into doubles. Lines passed on are written to the
+    sink as they were read. So an object update allocates nothing once its object and properties have been seen.
+ */
 public class AcmiStreamSplicer {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private static final byte[] RECORDING_TIMESTAMP = bytes("0,Event=RecordingTimestamp|");
+    private static final byte[] EVENT = bytes("0,Event");
+    private static final byte[] GLOBAL = bytes("0,");
+    private static final byte[] REFERENCE_TIME = bytes("0,ReferenceTime=");
+    private static final byte[] RECORDING_TIME = bytes("0,RecordingTime=");
+    private static final byte[] TIME_FRAME = bytes("#");
+    private static final byte[] HEADER = bytes("File");
+    private static final OutputStream DROPPED = OutputStream.nullOutputStream(); // never closed
+
     private final Interval<Instant> targetRecordingTime;
+    private final long targetStart;
+    private final long targetEnd;
 
     private Instant referenceTime;
-    private Instant recordingTime;
 
     private Map<String, String> headers = new HashMap<>();
     private Map<String, String> globals = new HashMap<>();
-    private Map<String, AcmiObject> objects = new HashMap<>();
+    private Map<Name, AcmiObject> objects = new LinkedHashMap<>(); // in the order first seen, so a checkpoint restores the same
+    private final Name name = new Name(); // for looking up ids and property names in place
 
     private boolean aggregating = true;
     private boolean completed = false;
-    private Duration offset = Duration.ZERO; // time from the reference time
+    private long offset = 0; // millis from the reference time
+    private final Value timeFrame = new Value(); // the line offset was last read from
 
-    private Duration referenceShift = Duration.ZERO;
+    private long referenceShift = 0; // millis
 
     public AcmiStreamSplicer(Interval<Instant> targetRecordingTime) {
         this.targetRecordingTime = targetRecordingTime;
+        this.targetStart = millis(targetRecordingTime.getStart());
+        this.targetEnd = millis(targetRecordingTime.getEnd());
+    }
+
+    /*
+        Only aggregates the state of a recording, for checkpoints of it as it's recorded.
+     */
+    public static AcmiStreamSplicer aggregator() {
+        return new AcmiStreamSplicer(Interval.between(Instant.MAX, Instant.MAX));
     }
 
-    private String toAcmiHeaderAndState() {
-
-        Stream<String> headerOffset = referenceShift.isNegative() ? Stream.of(
-                "#" + ((double) offset.plus(referenceShift).toMillis()) / 1000,
-                "0,Event=RecordingTimestamp|" + targetRecordingTime.getStart().toEpochMilli(), //Dummy event to get tacview to render the padded time
-                "#" + ((double) offset.toMillis()) / 1000
-        ) : Stream.of(
-                "#" + ((double) offset.plus(referenceShift).toMillis()) / 1000
-        );
-
-        return Stream.of(
-                headers.entrySet().stream().sorted(Comparator.comparing(Map.Entry::getKey)).map(e -> e.getKey() + "=" + e.getValue()),
-                Stream.of(
-                        Stream.of("0,ReferenceTime=" + DateTimeFormatter.ISO_INSTANT.format(referenceTime)),
-                        Stream.of("0,RecordingTime=" + DateTimeFormatter.ISO_INSTANT.format(targetRecordingTime.getStart())),
-                        globals.entrySet().stream()
-                                .filter(e -> Stream.of("ReferenceTime", "RecordingTime").noneMatch(s -> e.getKey().contentEquals(s)))
-                                .map(e -> "0," + e.getKey() + "=" + escape(e.getValue()))
-                ).flatMap(s -> s),
-                headerOffset,
-                objects.values().stream().map(AcmiObject::toAcmi)
-        ).flatMap(s -> s).collect(Collectors.joining("\n"));
+    /*
+        The state aggregated so far as ACMI, values as they were read, which restores the same state when applied
+        to a new splicer. Null before the reference time has been read.
+     */
+    public String checkpoint() {
+        if(referenceTime == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+                line(out, header.getKey() + "=" + header.getValue());
+            }
+            for(Map.Entry<String, String> global : globals.entrySet()) {
+                line(out, "0," + global.getKey() + "=" + global.getValue());
+            }
+            if(timeFrame.length > 0) {
+                timeFrame.write(out);
+                out.write('\n');
+            }
+            for(AcmiObject object : objects.values()) {
+                object.write(out);
+                out.write('\n');
+            }
+            String checkpoint = out.toString(StandardCharsets.UTF_8);
+            return checkpoint.isEmpty() ? checkpoint : checkpoint.substring(0, checkpoint.length() - 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    static String escape(String s) {
-        return s.replaceAll(",", "\\\\,").replaceAll("\n", "\\\\\n");
+    /*
+        Applies a checkpoint, instead of the recording up to where it was taken.
+     */
+    public void restore(String checkpoint) {
+        for(String line : checkpoint.split("(?<!\\\\)\\n")) {
+            apply(line);
+        }
+    }
+
+    private void writeHeaderAndState(OutputStream out) throws IOException {
+        for(Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+            line(out, header.getKey() + "=" + header.getValue());
+        }
+        line(out, "0,ReferenceTime=" + DateTimeFormatter.ISO_INSTANT.format(referenceTime));
+        line(out, "0,RecordingTime=" + DateTimeFormatter.ISO_INSTANT.format(targetRecordingTime.getStart()));
+        for(Map.Entry<String, String> global : globals.entrySet()) {
+            if(!global.getKey().equals("ReferenceTime") && !global.getKey().equals("RecordingTime")) {
+                line(out, "0," + global.getKey() + "=" + global.getValue());
+            }
+        }
+
+        line(out, "#" + ((double) (offset + referenceShift)) / 1000);
+        if(referenceShift < 0) {
+            line(out, "0,Event=RecordingTimestamp|" + targetStart); //Dummy event to get tacview to render the padded time
+            line(out, "#" + ((double) offset) / 1000);
+        }
+
+        for(AcmiObject object : objects.values()) {
+            object.write(out);
+            out.write('\n');
+        }
+    }
+
+    private static void line(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    /*
+        Whether the target has been passed, the rest of the recording is then dropped.
+     */
+    public boolean isCompleted() {
+        return completed;
     }
 
     private static Map.Entry<String, String> split(String s) {
@@ -71,93 +145,101 @@ public class AcmiStreamSplicer {
         return Map.entry(s.substring(0, index), s.substring(index+1));
     }
 
-    public List<String> apply(String line) {
+    /*
+        Applies a line to the state, dropping anything it would pass on.
+     */
+    public void apply(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            apply(bytes, 0, bytes.length, DROPPED);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        Applies the line at start for length bytes of line, without its newline, writing the lines of the splice
+        it makes to out, each with a newline.
+     */
+    public void apply(byte[] line, int start, int length, OutputStream out) throws IOException {
         if(completed) {
-            return List.of();
+            return;
         }
+        int end = start + length;
 
         if(aggregating) {
-            if(line.startsWith("0,Event=RecordingTimestamp|")) {
-                recordingTime = Instant.ofEpochMilli(Long.parseLong(line.replace("0,Event=RecordingTimestamp|", "")));
-                if(recordingTime.compareTo(targetRecordingTime.getStart()) >= 0) {
+            if(startsWith(line, start, end, RECORDING_TIMESTAMP)) {
+                long recordingTime = parseLong(line, start + RECORDING_TIMESTAMP.length, end);
+                if(recordingTime >= targetStart) {
                     aggregating = false;
-                    referenceShift = Duration.between(recordingTime, targetRecordingTime.getStart());
-                    recordingTime = targetRecordingTime.getStart();
+                    referenceShift = targetStart - recordingTime;
 
-                    return Stream.of(
-                            Stream.of(toAcmiHeaderAndState()),
-                            apply(line).stream()
-                    ).flatMap(s -> s).collect(Collectors.toList());
+                    writeHeaderAndState(out);
+                    apply(line, start, length, out);
                 }
-            } else if (line.startsWith("0,Event")) {
+            } else if (startsWith(line, start, end, EVENT)) {
                 // Event
-            } else if (line.startsWith("0,")) {
+            } else if (startsWith(line, start, end, GLOBAL)) {
                 // Global
-                Map.Entry<String, String> entry = split(line.replace("0,", ""));
+                Map.Entry<String, String> entry = split(string(line, start + GLOBAL.length, end));
                 if (entry.getKey().equals("ReferenceTime")) {
                     referenceTime = Instant.parse(entry.getValue());
-                    //offset = Duration.ZERO;
-                }
-                if (entry.getKey().equals("RecordingTime")) {
-                    recordingTime = Instant.parse(entry.getValue());
                 }
                 globals.put(entry.getKey(), entry.getValue());
-            } else if (line.startsWith("#")) {
+            } else if (startsWith(line, start, end, TIME_FRAME)) {
                 // Time update
-                double seconds = Double.parseDouble(line.replace("#", ""));
-                long millis = (long) (seconds * 1000);
-                offset = Duration.ofMillis(millis);
+                double seconds = parseDouble(line, start + TIME_FRAME.length, end);
+                offset = (long) (seconds * 1000);
+                timeFrame.set(line, start, length);
                 // Expecting this to stay the same for a session
-            } else if (line.startsWith("File")) {
+            } else if (startsWith(line, start, end, HEADER)) {
                 // Header
-                Map.Entry<String, String> entry = split(line);
+                Map.Entry<String, String> entry = split(string(line, start, end));
                 headers.put(entry.getKey(), entry.getValue());
             } else {
                 // Object
-                String[] tokens = line.split(",");
-                String id = tokens[0];
-                AcmiObject acmiObject = objects.computeIfAbsent(id, AcmiObject::new);
-                Arrays.stream(tokens).skip(1 /* id */).map(AcmiStreamSplicer::split).forEach(acmiObject::apply);
+                if(length > 0 && line[start] == '-') {
+                    // Removed, so neither spliced nor checkpointed
+                    objects.remove(name.set(line, start + 1, length - 1));
+                    return;
+                }
+                int comma = comma(line, start, end);
+                AcmiObject acmiObject = objects.get(name.set(line, start, comma - start));
+                if(acmiObject == null) {
+                    acmiObject = new AcmiObject(name.copy());
+                    objects.put(acmiObject.id, acmiObject);
+                }
+                for(int from = comma + 1; from < end; from = comma + 1) {
+                    comma = comma(line, from, end);
+                    if(comma > from) {
+                        acmiObject.apply(line, from, comma, name);
+                    }
+                }
             }
-
-            return List.of();
         } else {
-            if(line.startsWith("0,Event=RecordingTimestamp|")) {
-                recordingTime = Instant.ofEpochMilli(Long.parseLong(line.replace("0,Event=RecordingTimestamp|", "")));
-                if(recordingTime.isAfter(targetRecordingTime.getEnd())) {
+            if(startsWith(line, start, end, RECORDING_TIMESTAMP)) {
+                long recordingTime = parseLong(line, start + RECORDING_TIMESTAMP.length, end);
+                if(recordingTime > targetEnd) {
                     completed = true;
-                    return List.of();
-                } else {
-                    return List.of(line);
+                    return;
                 }
-            } else if(line.startsWith("0,Event")) {
+            } else if(startsWith(line, start, end, EVENT)) {
                 // Event
-                return List.of(line);
-            } else if(line.startsWith("0,")) {
-                // Global
-                Map.Entry<String, String> entry = split(line.replace("0,", ""));
-                if (entry.getKey().equals("ReferenceTime")) {
-                    Instant newReferenceTime = Instant.parse(entry.getValue());
-                    if(newReferenceTime.compareTo(referenceTime) != 0) {
-                        // Expecting this to stay the same for a session
-                        logger.warn("New reference time: " + newReferenceTime + " Old: " + referenceTime);
-                    }
-                }
-                if (entry.getKey().equals("RecordingTime")) {
-//                    recordingTime = Instant.parse(entry.getValue());
-//                    offset = Duration.ZERO;
-                    return List.of();
+            } else if(startsWith(line, start, end, REFERENCE_TIME)) {
+                Instant newReferenceTime = Instant.parse(string(line, start + REFERENCE_TIME.length, end));
+                if(newReferenceTime.compareTo(referenceTime) != 0) {
+                    // Expecting this to stay the same for a session
+                    logger.warn("New reference time: " + newReferenceTime + " Old: " + referenceTime);
                 }
-                return List.of(line);
-            } else if(line.startsWith("#")) {
-                return List.of(line);
-            } else if(line.startsWith("File")) {
+            } else if(startsWith(line, start, end, RECORDING_TIME)) {
+                return;
+            } else if(startsWith(line, start, end, HEADER)) {
                 // Header
-                return List.of();
-            } else {
-                // Object - May need translation if the ref lat logs shift
-                return List.of(line);
+                return;
             }
+            // Object - May need translation if the ref lat logs shift
+            out.write(line, start, length);
+            out.write('\n');
         }
     }
 
@@ -175,124 +257,306 @@ public class AcmiStreamSplicer {
 //        }
 //    }
 
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    // Instant.MAX and MIN are out of range of millis
+    private static long millis(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException e) {
+            return instant.isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int from, int to, byte[] prefix) {
+        return to - from >= prefix.length && Arrays.equals(bytes, from, from + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, char c) {
+        for(int i = from; i < to; i++) {
+            if(bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The end of the value from from, at the next comma that isn't escaped by a backslash, or to
+    private static int comma(byte[] bytes, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(bytes[i] == ',' && (i == from || bytes[i - 1] != '\\')) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    static long parseLong(byte[] bytes, int from, int to) {
+        if(from == to || to - from > 18) {
+            return Long.parseLong(string(bytes, from, to));
+        }
+        long value = 0;
+        for(int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if(digit < 0 || digit > 9) {
+                return Long.parseLong(string(bytes, from, to)); // signed, or not a number
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /*
+        Plain decimals, as DCS writes them, are parsed here. Their digits and the power of ten dividing them are both
+        exact as doubles, so the one rounding of the division gives what Double.parseDouble does. Anything else is
+        left to Double.parseDouble.
+     */
+    static double parseDouble(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = i < to && bytes[i] == '-';
+        if(negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int point = -1;
+        for(; i < to; i++) {
+            byte b = bytes[i];
+            if(b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if(mantissa > MAX_EXACT_MANTISSA) {
+                    return Double.parseDouble(string(bytes, from, to));
+                }
+            } else if(b == '.' && point < 0) {
+                point = i;
+            } else {
+                return Double.parseDouble(string(bytes, from, to));
+            }
+        }
+        int scale = point < 0 ? 0 : to - point - 1;
+        if(digits == 0 || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(string(bytes, from, to));
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /*
+        An object id or property name as bytes, hashed as its String would be, so they iterate in the same order. The
+        splicer's is pointed at each in turn to look them up where they were read, and copied only when one is new.
+     */
+    static final class Name {
+        private byte[] bytes;
+        private int start;
+        private int length;
+        private int hash;
+
+        Name set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+            int h = 0;
+            for(int i = start; i < start + length; i++) {
+                h = 31 * h + (bytes[i] & 0xff);
+            }
+            hash = h;
+            return this;
+        }
+
+        Name copy() {
+            return new Name().set(Arrays.copyOfRange(bytes, start, start + length), 0, length);
+        }
+
+        void write(OutputStream out) throws IOException {
+            out.write(bytes, start, length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Name)) {
+                return false;
+            }
+            Name name = (Name) o;
+            return hash == name.hash && Arrays.equals(bytes, start, start + length, name.bytes, name.start, name.start + name.length);
+        }
+
+        @Override
+        public String toString() {
+            return string(bytes, start, start + length);
+        }
+    }
+
+    /*
+        A value as read, copied into a buffer that's reused as it's updated.
+     */
+    static final class Value {
+        private byte[] bytes = new byte[16];
+        private int length;
+
+        void set(byte[] from, int start, int length) {
+            if(length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            System.arraycopy(from, start, bytes, 0, length);
+            this.length = length;
+        }
+
+        void write(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return string(bytes, 0, length);
+        }
+    }
+
     static class AcmiObject {
-        private final String id;
-        private Map<String,String> properties = new HashMap<>();
-        private Double latitude;
-        private Double longitude;
-        private Double altitude;
-        private Double roll;
-        private Double pitch;
-        private Double yaw;
+        private static final int LONGITUDE = 0;
+        private static final int LATITUDE = 1;
+        private static final int ALTITUDE = 2;
+        private static final int ROLL = 3;
+        private static final int PITCH = 4;
+        private static final int YAW = 5;
         // For flat coordinate sources
-        private Double u;
-        private Double v;
-        private Double heading;
+        private static final int U = 6;
+        private static final int V = 7;
+        private static final int HEADING = 8;
+
+        private static final int[] SIMPLE_SPHERICAL = {LONGITUDE, LATITUDE, ALTITUDE};
+        private static final int[] SIMPLE_FLAT = {LONGITUDE, LATITUDE, ALTITUDE, U, V};
+        private static final int[] COMPLEX_SPHERICAL = {LONGITUDE, LATITUDE, ALTITUDE, ROLL, PITCH, YAW};
+        private static final int[] COMPLEX_FLAT = {LONGITUDE, LATITUDE, ALTITUDE, ROLL, PITCH, YAW, U, V, HEADING};
 
-        AcmiObject(String id) {
+        private final Name id;
+        private final Map<Name, Value> properties = new HashMap<>();
+        private final double[] transform = new double[9];
+        private int read; // bits of the transform fields that have been read
+
+        AcmiObject(Name id) {
             this.id = id;
         }
 
-        String toTransform() {
-            Stream<Double> s = Stream.empty();
-            if(heading != null) { // need complex flat
-                s = Stream.of(
-                        longitude,
-                        latitude,
-                        altitude,
-                        roll,
-                        pitch,
-                        yaw,
-                        u,
-                        v,
-                        heading
-                );
-            } else if(roll != null){ // need complex spherical
-                s = Stream.of(
-                        longitude,
-                        latitude,
-                        altitude,
-                        roll,
-                        pitch,
-                        yaw
-                );
-            } else if(u != null) { // need simple flat
-                s = Stream.of(
-                        longitude,
-                        latitude,
-                        altitude,
-                        u,
-                        v
-                );
+        private boolean isRead(int field) {
+            return (read & (1 << field)) != 0;
+        }
+
+        private void writeTransform(OutputStream out) throws IOException {
+            int[] fields;
+            if(isRead(HEADING)) { // need complex flat
+                fields = COMPLEX_FLAT;
+            } else if(isRead(ROLL)) { // need complex spherical
+                fields = COMPLEX_SPHERICAL;
+            } else if(isRead(U)) { // need simple flat
+                fields = SIMPLE_FLAT;
             } else { // simple spherical
-                s = Stream.of(
-                        longitude,
-                        latitude,
-                        altitude
-                );
+                fields = SIMPLE_SPHERICAL;
+            }
+
+            out.write('T');
+            out.write('=');
+            for(int i = 0; i < fields.length; i++) {
+                if(i > 0) {
+                    out.write('|');
+                }
+                if(isRead(fields[i])) {
+                    out.write(bytes(Double.toString(transform[fields[i]])));
+                }
             }
+        }
+
+        // Values as read are already escaped
+        void write(OutputStream out) throws IOException {
+            id.write(out);
+            out.write(',');
+            writeTransform(out);
+            for(Map.Entry<Name, Value> property : properties.entrySet()) {
+                out.write(',');
+                property.getKey().write(out);
+                out.write('=');
+                property.getValue().write(out);
+            }
+        }
 
-            return "T=" + s.map(v -> v == null ? "" : v.toString()).collect(Collectors.joining("|"));
-        }
-
-        String toAcmi() {
-            return Stream.of(
-                    Stream.of(id),
-                    Stream.of(toTransform()),
-                    properties.entrySet().stream().map(e -> e.getKey() + "=" + escape(e.getValue()))
-            ).flatMap(s -> s).collect(Collectors.joining(","));
-        }
-
-        static void parse(String v, Consumer<Double> c) {
-            Optional.of(v).filter(s -> !s.isEmpty()).map(Double::valueOf).ifPresent(c::accept);
-        }
-
-        void apply(Map.Entry<String, String> property) {
-            if(property.getKey().equals("T")) {
-                String[] values = property.getValue().split("\\|", -1);
-                if(values.length == 3) {
-                    //Simple spherical
-                    parse(values[0], v -> longitude = v);
-                    parse(values[1], v -> latitude = v);
-                    parse(values[2], v -> altitude = v);
-                } else if(values.length == 5) {
-                    // Simple flat
-                    parse(values[0], v -> longitude = v);
-                    parse(values[1], v -> latitude = v);
-                    parse(values[2], v -> altitude = v);
-                    parse(values[3], v -> u = v);
-                    parse(values[4], i -> v = i);
-                } else if(values.length == 6) {
-                    // Complex spherical
-                    parse(values[0], v -> longitude = v);
-                    parse(values[1], v -> latitude = v);
-                    parse(values[2], v -> altitude = v);
-                    parse(values[3], v -> roll = v);
-                    parse(values[4], v -> pitch = v);
-                    parse(values[5], v -> yaw = v);
-                } else if(values.length == 9) {
-                    // Complex flat
-                    parse(values[0], v -> longitude = v);
-                    parse(values[1], v -> latitude = v);
-                    parse(values[2], v -> altitude = v);
-                    parse(values[3], v -> roll = v);
-                    parse(values[4], v -> pitch = v);
-                    parse(values[5], v -> yaw = v);
-                    parse(values[6], v -> u = v);
-                    parse(values[7], i -> v = i);
-                    parse(values[8], i -> heading = i);
-                } else {
-                    throw new IllegalStateException("Can't parse " + property + " ... " + values.length);
+        /*
+            Applies the property from from until to of line, name to look its name up with.
+         */
+        void apply(byte[] line, int from, int to, Name name) {
+            int equals = indexOf(line, from, to, '=');
+            if(equals == -1) {
+                throw new IllegalStateException("Failed to split " + string(line, from, to));
+            }
+            if(equals - from == 1 && line[from] == 'T') {
+                applyTransform(line, equals + 1, to);
+                return;
+            }
+            Value value = properties.get(name.set(line, from, equals - from));
+            if(value == null) {
+                value = new Value();
+                properties.put(name.copy(), value);
+            }
+            value.set(line, equals + 1, to - equals - 1);
+        }
+
+        private void applyTransform(byte[] line, int from, int to) {
+            int count = 1;
+            for(int i = from; i < to; i++) {
+                if(line[i] == '|') {
+                    count++;
                 }
+            }
+            int[] fields;
+            if(count == 3) {
+                fields = SIMPLE_SPHERICAL;
+            } else if(count == 5) {
+                fields = SIMPLE_FLAT;
+            } else if(count == 6) {
+                fields = COMPLEX_SPHERICAL;
+            } else if(count == 9) {
+                fields = COMPLEX_FLAT;
             } else {
-                properties.put(property.getKey(), property.getValue());
+                throw new IllegalStateException("Can't parse T=" + string(line, from, to) + " ... " + count);
+            }
+
+            int start = from;
+            for(int field : fields) {
+                int bar = indexOf(line, start, to, '|');
+                int end = bar == -1 ? to : bar;
+                if(end > start) { // empty if unchanged
+                    transform[field] = parseDouble(line, start, end);
+                    read |= 1 << field;
+                }
+                start = end + 1;
             }
         }
 
         @Override
         public String toString() {
-            return toAcmi();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                write(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toString(StandardCharsets.UTF_8);
         }
     }
 }
-
@@ -29,6 +29,8 @@ import java.util.stream.Stream;
     Records from a real time tacview service
  */
 public class TacviewRecorder {
+    // Each connection, and so each file, lasts at most this long
+    public static final Duration CONNECTION_PERIOD = Duration.ofMinutes(20);
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -40,7 +42,7 @@ public class TacviewRecorder {
 
     public Flux<Void> connect(String host, int port) {
         TemporalField temporalField = ChronoField.MINUTE_OF_HOUR;
-        long period = 20;
+        long period = CONNECTION_PERIOD.toMinutes();
         Flux<Instant> scheduledTimes = Flux.generate(
                 Instant::now,
                 (state, sink) -> {
@@ -0,0 +1,127 @@
+package org.dcstacviewsrsrecorder;
+
+import org.dcstacviewsrsrecorder.opus.OpusFiles;
+import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.dcstacviewsrsrecorder.srs.UdpVoicePacket;
+import org.dcstacviewsrsrecorder.tacview.AcmiFileWriter;
+import org.gagravarr.ogg.OggFile;
+import org.gagravarr.opus.OpusAudioData;
+import org.gagravarr.opus.OpusFile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/*
+    Synthetic recordings checked in with the tests, so that tests and benchmarks run anywhere:
+    sample.ogg, 34s of mono 48kHz Opus in 20ms packets as SRS sends, and fixtures/recording.txt.acmi, 30s of a
+    dozen objects at 5 frames a second as TacviewRecorder writes it, a RecordingTimestamp event after each frame.
+ */
+public class Fixtures {
+    // 2021-06-01T00:59:00Z, the recording's RecordingTime
+    public static final long START = 1622509140000L;
+    public static final String LABEL = "2.51E8";
+
+    private static List<byte[]> opusPackets;
+
+    /*
+        The Opus packets of sample.ogg.
+     */
+    public static synchronized List<byte[]> opusPackets() {
+        if(opusPackets == null) {
+            try (InputStream in = resource("sample.ogg")) {
+                opusPackets = OpusFiles.toStream(new OpusFile(new OggFile(in)))
+                        .map(OpusAudioData::getData)
+                        .collect(Collectors.toList());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return opusPackets;
+    }
+
+    /*
+        count transmissions of label, one every interval from start, each of length 20ms packets taken in turn
+        from sample.ogg.
+     */
+    public static List<AudioStore.Packet> transmissions(long start, int count, long interval, int length, String label) {
+        List<byte[]> opus = opusPackets();
+        List<AudioStore.Packet> packets = new ArrayList<>();
+        for(int transmission = 0; transmission < count; transmission++) {
+            for(int i = 0; i < length; i++) {
+                byte[] bytes = opus.get((transmission * length + i) % opus.size());
+                packets.add(new AudioStore.SimplePacket(start + transmission * interval + i * 20L, bytes, label));
+            }
+        }
+        return packets;
+    }
+
+    /*
+        An SRS voice packet of the audio on the frequencies.
+     */
+    public static UdpVoicePacket voicePacket(byte[] audio, List<Double> frequencies, long packetId) {
+        return new UdpVoicePacket(
+                audio,
+                frequencies.stream().map(f -> new UdpVoicePacket.Frequency(f, (byte) 0, (byte) 0)).collect(Collectors.toList()),
+                100_001,
+                packetId,
+                0,
+                "abcdefghijklmnopqrstuv".getBytes(StandardCharsets.US_ASCII),
+                "vutsrqponmlkjihgfedcba".getBytes(StandardCharsets.US_ASCII)
+        );
+    }
+
+    /*
+        The lines of fixtures/recording.txt.acmi.
+     */
+    public static List<String> acmiLines() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource("fixtures/recording.txt.acmi"), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+        fixtures/recording.txt.acmi recorded into dir as TacviewRecorder does, a frame at a time, returning the segment.
+     */
+    public static Path acmiSegment(Path dir) {
+        return acmiSegment(new AcmiFileWriter(dir));
+    }
+
+    /*
+        As acmiSegment, checkpointing every checkpointMillis.
+     */
+    public static Path acmiSegment(Path dir, long checkpointMillis) {
+        return acmiSegment(new AcmiFileWriter(dir, checkpointMillis, Long.MAX_VALUE));
+    }
+
+    private static Path acmiSegment(AcmiFileWriter acmiFileWriter) {
+        try (AcmiFileWriter writer = acmiFileWriter) {
+            List<String> lines = acmiLines();
+            for(int i = 0; i < lines.size(); i += 50) {
+                writer.accept(lines.subList(i, Math.min(lines.size(), i + 50)).stream()
+                        .map(l -> l + "\n")
+                        .collect(Collectors.toList()));
+            }
+            return writer.getFile();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static InputStream resource(String name) {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name);
+        if(in == null) {
+            throw new IllegalStateException("Missing fixture " + name);
+        }
+        return in;
+    }
+}
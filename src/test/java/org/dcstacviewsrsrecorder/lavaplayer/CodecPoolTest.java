@@ -0,0 +1,82 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import com.sedmelluq.discord.lavaplayer.format.OpusAudioDataFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CodecPoolTest {
+    static final CodecPool.Key MONO = new CodecPool.Key(new OpusAudioDataFormat(1, 48000, 960), 1, 48000);
+    static final CodecPool.Key NARROWBAND = new CodecPool.Key(new OpusAudioDataFormat(1, 48000, 960), 1, 16000);
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final List<Object> recycled = new ArrayList<>();
+    private final List<Object> closed = new ArrayList<>();
+
+    @Test
+    public void reusesReleasedCodecsOfTheSameFormat() {
+        CodecPool<CodecPool.Key, Object> pool = pool(2);
+
+        Object codec = pool.borrow(MONO);
+        pool.release(MONO, codec);
+        assertThat(recycled, contains(codec));
+
+        // an equal key, as each export makes its own
+        assertThat(pool.borrow(new CodecPool.Key(new OpusAudioDataFormat(1, 48000, 960), 1, 48000)), sameInstance(codec));
+        assertThat(pool.borrow(NARROWBAND), not(sameInstance(codec)));
+        assertThat(created.get(), is(2));
+        assertThat(closed, empty());
+    }
+
+    @Test
+    public void closesCodecsBeyondMaxIdle() {
+        CodecPool<CodecPool.Key, Object> pool = pool(2);
+
+        Object first = pool.borrow(MONO);
+        Object second = pool.borrow(MONO);
+        Object third = pool.borrow(MONO);
+        assertThat(pool.borrowedCount(), is(3));
+        pool.release(MONO, first);
+        pool.release(MONO, second);
+        pool.release(MONO, third);
+
+        assertThat(pool.idleCount(), is(2));
+        assertThat(pool.borrowedCount(), is(0));
+        assertThat(closed, contains(third));
+        assertThat(recycled, contains(first, second)); // not the one closed
+
+        pool.clear();
+        assertThat(pool.idleCount(), is(0));
+        assertThat(closed.size(), is(3));
+    }
+
+    @Test
+    public void closesCodecsThatFailToRecycle() {
+        CodecPool<CodecPool.Key, Object> pool = new CodecPool<>("test", 2, key -> new Object(), codec -> {
+            throw new IllegalStateException("corrupt");
+        }, closed::add);
+
+        Object codec = pool.borrow(MONO);
+        assertThrows(IllegalStateException.class, () -> pool.release(MONO, codec));
+
+        assertThat(closed, contains(codec));
+        assertThat(pool.idleCount(), is(0));
+    }
+
+    private CodecPool<CodecPool.Key, Object> pool(int maxIdle) {
+        return new CodecPool<>("test", maxIdle, key -> {
+            created.incrementAndGet();
+            return new Object();
+        }, recycled::add, closed::add);
+    }
+}
@@ -0,0 +1,58 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PcmMixerTest {
+    static final long START = 1622509140000L;
+
+    @Test
+    public void sumsLabelsInMono() {
+        PcmMixer mixer = new PcmMixer(START, 2, 1);
+        mixer.add(0, mixer.placement(0, START), samples(960, 1000), 1);
+        mixer.add(1, mixer.placement(1, START), samples(960, 500), 1);
+        mixer.add(1, mixer.placement(1, START + 20), samples(960, 30000), 1);
+        mixer.add(0, mixer.placement(0, START + 20), samples(960, 30000), 1);
+
+        assertThat(mixer.mix(PcmMixer.FRAME_SAMPLES - 1), nullValue());
+        assertThat(mixer.mix(PcmMixer.FRAME_SAMPLES).get(0), equalTo((short) 1500));
+        assertThat(mixer.mix(2 * PcmMixer.FRAME_SAMPLES).get(0), equalTo(Short.MAX_VALUE)); // clipped
+        assertThat(mixer.mix(3 * PcmMixer.FRAME_SAMPLES).get(0), equalTo((short) 0)); // silence
+        assertThat(mixer.getPosition(), equalTo(3L * PcmMixer.FRAME_SAMPLES));
+    }
+
+    @Test
+    public void pansLabelsInStereo() {
+        PcmMixer mixer = new PcmMixer(START, 2, 2);
+        mixer.add(0, mixer.placement(0, START), samples(960, 1000), 1);
+        mixer.add(1, mixer.placement(1, START + 20), samples(960, 1000), 1);
+
+        ShortBuffer first = mixer.mix(Long.MAX_VALUE);
+        assertThat((int) first.get(0), greaterThan(2 * first.get(1)));
+        ShortBuffer second = mixer.mix(Long.MAX_VALUE);
+        assertThat((int) second.get(1), greaterThan(2 * second.get(0)));
+    }
+
+    @Test
+    public void continuesLabelsThroughJitter() {
+        PcmMixer mixer = new PcmMixer(START, 1, 1);
+        mixer.add(0, mixer.placement(0, START + 1000), samples(960, 1), 1);
+
+        // A packet 10ms late follows straight on, one after a pause starts at its timestamp
+        assertThat(mixer.placement(0, START + 1030), equalTo(mixer.sampleAt(START + 1020)));
+        assertThat(mixer.placement(0, START + 1500), equalTo(mixer.sampleAt(START + 1500)));
+    }
+
+    private static ShortBuffer samples(int count, int value) {
+        short[] samples = new short[count];
+        Arrays.fill(samples, (short) value);
+        return ShortBuffer.wrap(samples);
+    }
+}
@@ -0,0 +1,143 @@
+package org.dcstacviewsrsrecorder.lavaplayer;
+
+import com.sedmelluq.discord.lavaplayer.format.transcoder.AudioChunkDecoder;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/*
+    A mostly idle hour, six 5s transmissions of the sample audio, with the radio effect, padded with the cached
+    silent frame. How much faster than encoding an hour of zeros, see DecodePaddingWithSilenceBenchmark and
+    EncodeZerosBenchmark. And a narrowband render, padded the same way around audio resampled to 48kHz.
+ */
+public class SilencePaddingTest {
+    static final long START = Fixtures.START;
+    static final long HOUR = 3600_000;
+    static final long FRAMES = HOUR / 20;
+
+    @Test
+    public void padsAnIdleHourWithCachedSilence() {
+        List<AudioStore.Packet> packets = Fixtures.transmissions(START + 60_000, 6, 600_000, 250, Fixtures.LABEL);
+        byte[] silence = LavaFunctions.silentFrame(LavaFunctions.SRS_OPUS);
+
+        long[] counts = LavaFunctions.decodePaddingWithSilence(
+                packets.stream(),
+                START,
+                START + HOUR,
+                LavaFunctions.SRS_OPUS,
+                () -> LavaFunctions.radioEffectFilter()::apply,
+                frames -> {
+                    try (frames) {
+                        return frames.map(frame -> frame.getData() == silence ? new long[]{ 1, 1 } : new long[]{ 1, 0 })
+                                .reduce(new long[2], (a, b) -> new long[]{ a[0] + b[0], a[1] + b[1] });
+                    }
+                }
+        );
+        assertThat(counts[0], greaterThanOrEqualTo(FRAMES - 1));
+        assertThat(counts[0], lessThanOrEqualTo(FRAMES));
+        assertThat(counts[1], greaterThan(FRAMES * 9 / 10));
+    }
+
+    @Test
+    public void rendersNarrowbandAt48kHz() {
+        // A 5s transmission within a minute, decoded and filtered at 16kHz then resampled and encoded at 48kHz
+        List<AudioStore.Packet> packets = Fixtures.transmissions(START + 10_000, 1, 0, 250, Fixtures.LABEL);
+        List<byte[]> frames = LavaFunctions.decodePaddingWithSilence(
+                packets.stream(),
+                START,
+                START + 60_000,
+                LavaFunctions.SRS_OPUS,
+                LavaFunctions.NARROWBAND_RATE,
+                () -> LavaFunctions.radioEffectFilter(LavaFunctions.NARROWBAND_RATE)::apply,
+                audioFrames -> {
+                    try (audioFrames) {
+                        return audioFrames.map(AudioFrame::getData).collect(Collectors.toList());
+                    }
+                }
+        );
+        assertThat((long) frames.size(), greaterThanOrEqualTo(60_000 / 20 - 1L));
+        assertThat((long) frames.size(), lessThanOrEqualTo(60_000 / 20L));
+
+        AudioChunkDecoder decoder = LavaFunctions.SRS_OPUS.createDecoder();
+        ShortBuffer samples = ByteBuffer.allocateDirect(LavaFunctions.SRS_OPUS.totalSampleCount() * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        int loudest = 0;
+        try {
+            for(int i = 0; i < frames.size(); i++) {
+                samples.clear();
+                decoder.decode(frames.get(i), samples);
+                assertThat(samples.remaining(), is(LavaFunctions.SRS_OPUS.totalSampleCount()));
+                if(i < 10_000 / 20 - 10 || i > 15_000 / 20 + 10) { // outside the transmission, give or take the resampler's delay
+                    assertThat("frame " + i, peak(samples), lessThanOrEqualTo(1));
+                } else {
+                    loudest = Math.max(loudest, peak(samples));
+                }
+            }
+        } finally {
+            decoder.close();
+        }
+        assertThat(loudest, greaterThan(100));
+    }
+
+    @Test
+    public void rendersTheSameBytesWithPooledCodecs() {
+        List<AudioStore.Packet> packets = Fixtures.transmissions(START + 1_000, 2, 10_000, 250, Fixtures.LABEL);
+        List<List<byte[]>> renders = new ArrayList<>();
+        for(int render = 0; render < 3; render++) { // the later ones with the codecs the first released
+            renders.add(LavaFunctions.decodePaddingWithSilence(
+                    packets.stream(),
+                    START,
+                    START + 30_000,
+                    LavaFunctions.SRS_OPUS,
+                    () -> LavaFunctions.radioEffectFilter(48000, 1)::apply,
+                    audioFrames -> {
+                        try (audioFrames) {
+                            return audioFrames.map(AudioFrame::getData).collect(Collectors.toList());
+                        }
+                    }
+            ));
+        }
+        for(List<byte[]> render : renders.subList(1, renders.size())) {
+            assertThat(render.size(), is(renders.get(0).size()));
+            for(int i = 0; i < render.size(); i++) {
+                assertThat("frame " + i, Arrays.equals(render.get(i), renders.get(0).get(i)), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void theSilentFrameDecodesToAFrameOfSilence() {
+        AudioChunkDecoder decoder = LavaFunctions.SRS_OPUS.createDecoder();
+        ShortBuffer samples = ByteBuffer.allocateDirect(LavaFunctions.SRS_OPUS.totalSampleCount() * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        try {
+            decoder.decode(LavaFunctions.silentFrame(LavaFunctions.SRS_OPUS), samples);
+        } finally {
+            decoder.close();
+        }
+
+        assertThat(samples.remaining(), is(LavaFunctions.SRS_OPUS.totalSampleCount()));
+        assertThat(peak(samples), lessThanOrEqualTo(1));
+    }
+
+    private static int peak(ShortBuffer samples) {
+        int peak = 0;
+        for(int i = samples.position(); i < samples.limit(); i++) {
+            peak = Math.max(peak, Math.abs(samples.get(i)));
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,47 @@
+package org.dcstacviewsrsrecorder.opus;
+
+import org.dcstacviewsrsrecorder.recordingservice.AudioStore;
+import org.gagravarr.opus.OpusAudioData;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class OpusRemuxTest {
+    static final long START = 1622509140000L;
+    // 40ms: two 20ms CELT frames (code 1), then the frames
+    static final byte[] PACKET = new byte[]{ (byte) 0xF9, (byte) 0xFF, (byte) 0xFE, 0 };
+
+    @Test
+    public void readsDurationFromToc() {
+        assertThat(OpusToc.samples(PACKET), equalTo(1920));
+        assertThat(OpusToc.samples(OpusToc.silence(1)), equalTo(960));
+        assertThat(OpusToc.samples(new byte[]{ 0x0B, 3 }), equalTo(2880)); // SILK 60ms
+        assertThat(OpusToc.samples(new byte[]{ (byte) 0x83, 0x05 }), equalTo(5 * 120)); // five 2.5ms CELT frames
+        assertThat(OpusToc.isStereo(OpusToc.silence(2)[0]), equalTo(true));
+    }
+
+    @Test
+    public void padsGapsWithSilence() {
+        // A second of packets, a second of nothing, a packet 10ms late
+        Stream<AudioStore.Packet> packets = Stream.of(
+                Stream.iterate(0L, i -> i + 40).limit(25).map(t -> packet(START + t)),
+                Stream.of(packet(START + 2000), packet(START + 2050))
+        ).flatMap(s -> s);
+
+        List<OpusAudioData> frames = OpusRemux.padWithSilence(packets, START, START + 3000, 1).collect(Collectors.toList());
+
+        // Packets passed through as they are, silence in 20ms frames
+        assertThat(frames.stream().filter(f -> f.getData().length == PACKET.length).count(), equalTo(27L));
+        assertThat(frames.stream().filter(f -> f.getData().length == 3).count(), equalTo(50L + 46L));
+        assertThat(frames.stream().mapToLong(f -> OpusToc.samples(f.getData())).sum(), equalTo(3000L * 48));
+    }
+
+    private static AudioStore.Packet packet(long timestamp) {
+        return new AudioStore.SimplePacket(timestamp, PACKET, "2.51E8");
+    }
+}
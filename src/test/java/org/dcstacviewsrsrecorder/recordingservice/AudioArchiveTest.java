@@ -0,0 +1,41 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.gagravarr.opus.OpusAudioData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+public class AudioArchiveTest {
+    static final long START = 1622509140000L;
+    // 20ms CELT frame of silence
+    static final byte[] FRAME = new byte[]{ (byte) 0xF8, (byte) 0xFF, (byte) 0xFE };
+
+    @Test
+    public void readsRangeFromIndexedPage(@TempDir Path dir) {
+        AudioArchive archive = new AudioArchive(dir);
+        archive.write(START, START + 120_000, "3.05E8", 1, Stream.generate(() -> new OpusAudioData(FRAME)).limit(6000));
+
+        List<AudioArchive.Chunk> chunks = archive.chunks("3.05E8", START + 60_000, START + 61_000);
+        assertThat(chunks, hasSize(1));
+        assertThat(chunks.get(0).getEnd(), equalTo(START + 120_000));
+        assertThat(archive.chunks("2.51E8", START, START + 120_000), empty());
+        assertThat(archive.chunks("3.05E8", START + 120_000, START + 180_000), empty());
+
+        try (Stream<OpusAudioData> frames = archive.read(chunks.get(0), START + 60_010, START + 61_000)) {
+            // Frames starting from 60.020s until 61s
+            assertThat(frames.collect(Collectors.toList()), hasSize(49));
+        }
+        try (Stream<OpusAudioData> frames = archive.read(chunks.get(0), START, START + 120_000)) {
+            assertThat(frames.mapToInt(OpusAudioData::getNumberOfSamples).sum(), equalTo(6000 * 960));
+        }
+    }
+}
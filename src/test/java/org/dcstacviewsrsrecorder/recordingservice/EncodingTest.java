@@ -15,6 +15,7 @@ import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
+import org.dcstacviewsrsrecorder.Fixtures;
 import org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions;
 import org.dcstacviewsrsrecorder.opus.OpusFiles;
 import org.dcstacviewsrsrecorder.srs.AsyncMonoAdapter;
@@ -22,6 +23,7 @@ import org.gagravarr.ogg.OggFile;
 import org.gagravarr.opus.OpusAudioData;
 import org.gagravarr.opus.OpusFile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ClassPathResource;
 import reactor.core.publisher.Mono;
@@ -31,6 +33,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
@@ -39,51 +42,52 @@ import java.util.stream.Stream;
 
 import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.decodePaddingWithSilence;
 import static org.dcstacviewsrsrecorder.lavaplayer.LavaFunctions.radioEffectFilter;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
 
 // https://discord.com/channels/298054423656005632/598576342921117707/846453806203928597
 public class EncodingTest {
 
     @Test
-    public void paddingTest() {
-        AudioStore audioStore = new AudioStore();
+    public void paddingTest(@TempDir Path tempDir) {
+        AudioStore audioStore = new AudioStore(tempDir.resolve("data"));
+        Fixtures.transmissions(Fixtures.START, 3, 10_000, 250, "3.05E8")
+                .forEach(packet -> audioStore.save("fixture", packet));
 
-        long start = audioStore.findAllForFrequency("fjp", "3.05E8", s -> {
+        long start = audioStore.findAllForFrequency("fixture", "3.05E8", s -> {
             return s.min(Comparator.comparing(p -> p.getTimestamp())).get().getTimestamp();
         });
 
-        long end = audioStore.findAllForFrequency("fjp", "3.05E8", s -> {
+        long end = audioStore.findAllForFrequency("fixture", "3.05E8", s -> {
             return s.max(Comparator.comparing(p -> p.getTimestamp())).get().getTimestamp();
         });
 
         System.out.println("Start " + Instant.ofEpochMilli(start));
         System.out.println("End " + Instant.ofEpochMilli(end));
 
-        AudioDataFormat format = LavaFunctions.SRS_OPUS;
-        audioStore.findAllForFrequency("fjp", "3.05E8", s -> {
-            Function<ShortBuffer, ShortBuffer> radioEffectFilter = radioEffectFilter();
-            File file = decodePaddingWithSilence(
+        File file = audioStore.findAllForFrequency("fixture", "3.05E8", s -> {
+            return decodePaddingWithSilence(
                     s,
                     start - 3000,
                     end + 3000,
                     LavaFunctions.SRS_OPUS,
-                    radioEffectFilter::apply,
+                    () -> radioEffectFilter()::apply,
                     audioFrameStream -> {
-                        File outFile = new File("paddingTest.ogg");
-                        try {
-                            outFile.createNewFile(); // if file already exists will do nothing
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
+                        File outFile = tempDir.resolve("paddingTest.ogg").toFile();
+                        try (audioFrameStream) {
+                            OpusFiles.toFile(
+                                    outFile,
+                                    audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
+                            );
                         }
-                        OpusFiles.toFile(
-                                outFile,
-                                audioFrameStream.map(audioFrame -> new OpusAudioData(audioFrame.getData()))
-                        );
 
                         return outFile;
                     }
             );
-            return file;
         });
+        audioStore.close();
+
+        assertThat(file.length(), greaterThan(0L));
     }
 
     //@Test
@@ -0,0 +1,274 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+
+public class ExportCacheTest {
+    static final Instant FROM = Instant.parse("2021-06-01T00:00:00Z");
+    static final Instant UNTIL = Instant.parse("2021-06-01T01:00:00Z");
+
+    @Test
+    public void rendersOnceUntilTheRangeChanges(@TempDir Path dir) throws Exception {
+        CountingCache cache = new CountingCache(dir, 1000);
+
+        ExecutorService downloads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = downloads.invokeAll(IntStream.range(0, 8)
+                    .mapToObj(i -> (Callable<String>) () -> read(cache.open("session", "2.51E8", FROM, UNTIL)))
+                    .collect(Collectors.toList()));
+            for(Future<String> result : results) {
+                assertThat(result.get(), equalTo("2.51E8 v1"));
+            }
+        } finally {
+            downloads.shutdown();
+        }
+        assertThat(cache.renders.get(), equalTo(1));
+        assertThat(read(cache.open("session", "3.05E8", FROM, UNTIL)), equalTo("3.05E8 v1"));
+        assertThat(cache.renders.get(), equalTo(2));
+        // Narrowband only changes the radio effect
+        assertThat(read(cache.open("session", "3.05E8", FROM, UNTIL, false, false)), equalTo("3.05E8 v1"));
+        assertThat(read(cache.open("session", "3.05E8", FROM, UNTIL, false, true)), equalTo("3.05E8 v1"));
+        assertThat(cache.renders.get(), equalTo(3));
+
+        cache.version = "v2";
+        assertThat(read(cache.open("session", "2.51E8", FROM, UNTIL)), equalTo("2.51E8 v2"));
+        assertThat(cache.renders.get(), equalTo(4));
+        assertThat(files(dir), equalTo(3L)); // the stale render was deleted
+
+        cache.close();
+        assertThat(files(dir), equalTo(0L));
+    }
+
+    @Test
+    public void evictsPastTheBudget(@TempDir Path dir) throws IOException {
+        CountingCache cache = new CountingCache(dir, 100);
+        for(int i = 0; i < 20; i++) {
+            read(cache.open("session", "2.51E8", FROM.plusSeconds(i), UNTIL));
+        }
+        // The last render may not be weighed yet, its weight is set as its future completes
+        cache.cleanUp();
+        assertThat(files(dir), lessThanOrEqualTo(100L / 9 + 1));
+        cache.close();
+    }
+
+    @Test
+    public void evictsRendersInFlightPastTheBudget(@TempDir Path dir) throws Exception {
+        // Each render writes 2 MB then waits, so two in flight are past a 3 MB budget
+        Semaphore written = new Semaphore(0);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExportCache cache = new ExportCache(dir, 3 * ExportCache.WEIGH_EVERY_BYTES) {
+            @Override
+            void render(Key key, OutputStream out) {
+                try {
+                    for(int i = 0; i < 2; i++) {
+                        out.write(new byte[(int) ExportCache.WEIGH_EVERY_BYTES]);
+                    }
+                    written.release();
+                    finish.await();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            String version(String key, String label, Instant from, Instant until) {
+                return "v1";
+            }
+        };
+
+        ExportCache.Export first = cache.open("session", "2.51E8", FROM, UNTIL);
+        assertThat(written.tryAcquire(10, TimeUnit.SECONDS), equalTo(true));
+        ExportCache.Export second = cache.open("session", "3.05E8", FROM, UNTIL);
+        assertThat(written.tryAcquire(10, TimeUnit.SECONDS), equalTo(true));
+        cache.cleanUp();
+        assertThat(files(dir), equalTo(1L));
+
+        // Read on to the end by those already streaming it
+        finish.countDown();
+        try (InputStream in = first.getInputStream()) {
+            assertThat(in.readAllBytes().length, equalTo((int) (2 * ExportCache.WEIGH_EVERY_BYTES)));
+        }
+        second.getInputStream().close();
+        cache.close();
+    }
+
+    @Test
+    public void streamsWhileRendering(@TempDir Path dir) throws Exception {
+        CountDownLatch rest = new CountDownLatch(1);
+        ExportCache cache = new ExportCache(dir, 1000) {
+            @Override
+            void render(Key key, OutputStream out) {
+                try {
+                    out.write("first ".getBytes());
+                    rest.await();
+                    out.write("rest".getBytes());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            String version(String key, String label, Instant from, Instant until) {
+                return "v1";
+            }
+        };
+
+        ExportCache.Export export = cache.open("session", "2.51E8", FROM, UNTIL);
+        assertThat(export.getLength(), equalTo(-1L));
+        try (InputStream in = export.getInputStream()) {
+            assertThat(new String(in.readNBytes(6)), equalTo("first "));
+            rest.countDown();
+            assertThat(new String(in.readAllBytes()), equalTo("rest"));
+        }
+
+        // Complete, so the length is known up front
+        assertThat(cache.open("session", "2.51E8", FROM, UNTIL).getLength(), equalTo(10L));
+        cache.close();
+    }
+
+    @Test
+    public void readsRangesOnceRenderedAndTagsByVersion(@TempDir Path dir) throws IOException {
+        CountingCache cache = new CountingCache(dir, 1000);
+        String tag = cache.tag("session", "2.51E8", FROM, UNTIL, true, false); // before anything is rendered
+
+        ExportCache.Export export = cache.open("session", "2.51E8", FROM, UNTIL, true, false);
+        assertThat(export.getLength(), equalTo(-1L));
+        assertThat(export.awaitLength(), equalTo(9L));
+        try (InputStream in = export.getInputStream(3, 7)) {
+            assertThat(new String(in.readAllBytes()), equalTo("1E8 "));
+        }
+        assertThat(export.getTag(), equalTo(tag));
+
+        // Other options render other bytes
+        assertThat(cache.tag("session", "2.51E8", FROM, UNTIL, false, false), not(equalTo(tag)));
+        assertThat(cache.tag("session", "2.51E8", FROM, UNTIL, true, true), not(equalTo(tag)));
+        assertThat(cache.tag("session", "2.51E8", FROM, UNTIL, false, true), equalTo(cache.tag("session", "2.51E8", FROM, UNTIL, false, false)));
+        cache.close();
+
+        // Rendered again, as after a restart, to the same tag
+        CountingCache restarted = new CountingCache(dir.resolve("restarted"), 1000);
+        assertThat(restarted.tag("session", "2.51E8", FROM, UNTIL, true, false), equalTo(tag));
+        ExportCache.Export again = restarted.open("session", "2.51E8", FROM, UNTIL, true, false);
+        assertThat(again.getTag(), equalTo(tag));
+        again.getInputStream().close();
+
+        restarted.version = "v2";
+        assertThat(restarted.tag("session", "2.51E8", FROM, UNTIL, true, false), not(equalTo(tag)));
+        ExportCache.Export rendered = restarted.open("session", "2.51E8", FROM, UNTIL, true, false);
+        assertThat(rendered.getTag(), equalTo(restarted.tag("session", "2.51E8", FROM, UNTIL, true, false)));
+        rendered.getInputStream().close();
+        restarted.close();
+    }
+
+    @Test
+    public void bundlesLabelsRenderedInParallel(@TempDir Path dir) throws IOException {
+        // Neither render finishes until both have started, so rendering one after the other would fail
+        CyclicBarrier started = new CyclicBarrier(2);
+        CountingCache cache = new CountingCache(dir, 1000) {
+            @Override
+            List<String> labels(String key, Instant from, Instant until) {
+                return List.of("2.51E8", "3.05E8");
+            }
+
+            @Override
+            void render(Key key, OutputStream out) {
+                try {
+                    started.await(10, TimeUnit.SECONDS);
+                } catch (BrokenBarrierException | TimeoutException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.render(key, out);
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.bundle("session", FROM, UNTIL, true, false, label -> label + ".ogg", out);
+        assertThat(cache.renders.get(), equalTo(2));
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName(), equalTo("2.51E8.ogg"));
+            assertThat(new String(zip.readAllBytes()), equalTo("2.51E8 v1"));
+            assertThat(zip.getNextEntry().getName(), equalTo("3.05E8.ogg"));
+            assertThat(new String(zip.readAllBytes()), equalTo("3.05E8 v1"));
+        }
+        cache.close();
+    }
+
+    private static String read(ExportCache.Export export) throws IOException {
+        try (InputStream in = export.getInputStream()) {
+            return new String(in.readAllBytes());
+        }
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    static class CountingCache extends ExportCache {
+        static final long RENDER_MILLIS = 300;
+
+        final AtomicInteger renders = new AtomicInteger();
+        volatile String version = "v1";
+
+        CountingCache(Path dir, long budgetBytes) {
+            super(dir, budgetBytes);
+        }
+
+        @Override
+        String version(String key, String label, Instant from, Instant until) {
+            return version;
+        }
+
+        @Override
+        void render(Key key, OutputStream out) {
+            renders.incrementAndGet();
+            try {
+                Thread.sleep(RENDER_MILLIS);
+                out.write((key.getLabel() + " " + version).getBytes());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class GroupCommitWriterTest {
+
+    @Test
+    public void commitsInBatchesAndFlushesOnClose() {
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(1000, 100, Duration.ofSeconds(10), (key, batch) -> batches.add(batch));
+
+        for(int i = 0; i < 250; i++) {
+            writer.offer("a", i);
+        }
+        writer.close();
+
+        assertThat(batches.stream().mapToInt(List::size).sum(), equalTo(250));
+        assertThat(batches.size(), lessThanOrEqualTo(3));
+        assertThat(batches.stream().flatMap(List::stream).collect(Collectors.toList()).get(249), equalTo(249));
+    }
+
+    @Test
+    public void dropsWhenQueueIsFull() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(10, 1, Duration.ofMillis(10), (key, batch) -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        writer.offer("a", 0);
+        blocked.await();
+        for(int i = 0; i < 20; i++) {
+            writer.offer("a", i);
+        }
+        release.countDown();
+        writer.close();
+
+        assertThat(writer.getDropped(), equalTo(10L));
+    }
+
+    @Test
+    public void removesIdleBatchers() throws InterruptedException {
+        List<Integer> committed = new CopyOnWriteArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(10, 10, Duration.ofMillis(1), (key, batch) -> committed.addAll(batch));
+
+        for(int i = 0; i < 20; i++) {
+            writer.offer("store " + i, i);
+        }
+        for(int wait = 0; wait < 1000 && writer.batcherCount() > 0; wait++) {
+            Thread.sleep(10);
+        }
+        assertThat(writer.batcherCount(), equalTo(0));
+        assertThat(committed, hasSize(20));
+
+        // Offered again once removed
+        writer.offer("store 0", 20);
+        writer.close();
+        assertThat(committed, hasSize(21));
+    }
+}
@@ -0,0 +1,328 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import jetbrains.exodus.entitystore.Entity;
+import jetbrains.exodus.entitystore.PersistentEntityStore;
+import jetbrains.exodus.entitystore.PersistentEntityStores;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PacketLogTest {
+
+    // 2021-06-01T00:59:00Z, a minute before an hour boundary
+    static final long START = 1622509140000L;
+
+    static List<AudioStore.Packet> packets(long from, long count, String label) {
+        return LongStream.range(0, count)
+                .mapToObj(i -> new AudioStore.SimplePacket(from + i * 40, new byte[]{(byte) i, 1, 2}, label))
+                .collect(Collectors.toList());
+    }
+
+    static List<Long> timestamps(Stream<AudioStore.Packet> packets) {
+        return packets.map(AudioStore.Packet::getTimestamp).collect(Collectors.toList());
+    }
+
+    @Test
+    public void rangeReadsAcrossSegments(@TempDir Path dir) {
+        try (PacketLog log = PacketLog.open(dir)) {
+            // Two minutes of audio spanning an hour boundary, so two segments
+            log.append(Stream.concat(packets(START, 3000, "3.05E8").stream(), packets(START + 20, 3000, "2.51E8").stream())
+                    .sorted(Comparator.comparing(AudioStore.Packet::getTimestamp))
+                    .collect(Collectors.toList()));
+
+            assertThat(timestamps(log.read(START, START + 80, "3.05E8")), contains(START, START + 40, START + 80));
+            assertThat(timestamps(log.read(START + 60_000, START + 60_040, "2.51E8")), contains(START + 60_020));
+            assertThat(timestamps(log.read(START, START + 119_999)), hasSize(6000));
+            assertThat(timestamps(log.readAll("unknown")), empty());
+        }
+
+        // Sealed segments read through their label index files
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(timestamps(log.read(START + 59_960, START + 60_040, "3.05E8")), contains(START + 59_960, START + 60_000, START + 60_040));
+            assertThat(timestamps(log.readAll("2.51E8")), hasSize(3000));
+        }
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.filter(p -> p.toString().endsWith(".lidx")).count(), equalTo(2L));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void viewsPacketsInPlace(@TempDir Path dir) {
+        try (PacketLog log = PacketLog.open(dir)) {
+            // Across an hour boundary, so from two segments
+            log.append(packets(START, 3000, "3.05E8"));
+
+            List<AudioStore.Packet> read = log.read(START, START + 119_999, "3.05E8").collect(Collectors.toList());
+            Set<AudioStore.Packet> packets = Collections.newSetFromMap(new IdentityHashMap<>());
+            Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+            Iterator<AudioStore.Packet> copies = read.iterator();
+            log.view(START, START + 119_999, "3.05E8").forEach(packet -> {
+                AudioStore.Packet copy = copies.next();
+                assertThat(packet.getTimestamp(), equalTo(copy.getTimestamp()));
+                assertThat(packet.getBuffer(), equalTo(ByteBuffer.wrap(copy.getBytes())));
+                packets.add(packet);
+                buffers.add(packet.getBuffer());
+            });
+            assertThat(copies.hasNext(), equalTo(false));
+            assertThat(packets, hasSize(1));
+            assertThat(buffers.size(), lessThan(3));
+        }
+    }
+
+    @Test
+    public void reopenRecoversPartialRecord(@TempDir Path dir) throws IOException {
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.append(packets(START, 10, "3.05E8"));
+        }
+
+        Path segment = dir.resolve(PacketLog.toFileName(START));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(timestamps(log.readAll("3.05E8")), hasSize(9));
+
+            log.append(packets(START + 400, 1, "3.05E8"));
+            AudioStore.Packet last = log.read(START + 400, START + 400, "3.05E8").findFirst().orElseThrow();
+            assertThat(last.getLabel(), equalTo("3.05E8"));
+            assertThat(last.getBytes().length, equalTo(3));
+        }
+    }
+
+    @Test
+    public void reopenResumesTheLastSegment(@TempDir Path dir) throws IOException {
+        long start = START + 120_000; // an hour to fill
+        for(int reopen = 0; reopen < 3; reopen++) {
+            try (PacketLog log = PacketLog.open(dir)) {
+                log.append(packets(start + reopen * 60_000, 10, "3.05E8"));
+            }
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(segments(dir), equalTo(1L));
+            assertThat(log.readAll("3.05E8").count(), equalTo(30L));
+            assertThat(log.transmissions(start, start + 180_000), hasSize(3));
+
+            // Appended to as the head, with its summaries in memory
+            log.append(packets(start + 180_000, 10, "2.51E8"));
+            assertThat(segments(dir), equalTo(1L));
+            assertThat(log.readAll("2.51E8").count(), equalTo(10L));
+            assertThat(log.compactable(Long.MAX_VALUE), empty());
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(log.readAll("3.05E8").count(), equalTo(30L));
+            assertThat(log.labels(start, start + 240_000), hasSize(2));
+        }
+    }
+
+    @Test
+    public void latePacketsKeepSegmentsInOrder(@TempDir Path dir) {
+        long start = START + 120_000;
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.append(packets(start, 10, "3.05E8"));
+        }
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.compact(start);
+            // Earlier than the compacted segment, yet in a new one starting after it
+            log.append(packets(start - 100, 1, "2.51E8"));
+            log.append(packets(start + 400, 10, "2.51E8"));
+
+            assertThat(log.expirable(Long.MAX_VALUE).get(0).getEnd(), equalTo(start + 361));
+            assertThat(timestamps(log.read(start - 100, start - 100, "2.51E8")), contains(start - 100));
+            assertThat(timestamps(log.readAll("2.51E8")), hasSize(11));
+        }
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(log.expirable(Long.MAX_VALUE).get(0).getStart(), equalTo(start));
+            assertThat(timestamps(log.read(start - 100, start + 3_600_000)), hasSize(11));
+        }
+    }
+
+    private static long segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).count();
+        }
+    }
+
+    @Test
+    public void migratesXodusStore(@TempDir Path dir) {
+        PersistentEntityStore entityStore = PersistentEntityStores.newInstance(dir.resolve(".audio").toString());
+        entityStore.executeInTransaction(txn -> packets(START, 100, "3.05E8").forEach(packet -> {
+            Entity entity = txn.newEntity("packet");
+            entity.setProperty("timestamp", packet.getTimestamp());
+            entity.setProperty("label", packet.getLabel());
+            entity.setBlob("bytes", new ByteArrayInputStream(packet.getBytes()));
+        }));
+        entityStore.close();
+
+        new AudioStore().migrate(dir.resolve(".audio"), dir.resolve(".packets"));
+
+        try (PacketLog log = PacketLog.open(dir.resolve(".packets"))) {
+            assertThat(timestamps(log.readAll("3.05E8")), equalTo(timestamps(packets(START, 100, "3.05E8").stream())));
+        }
+    }
+
+    @Test
+    public void summarisesTransmissions(@TempDir Path dir) throws IOException {
+        try (PacketLog log = PacketLog.open(dir)) {
+            // One transmission across the hour boundary, then another after a pause
+            log.append(packets(START + 59_000, 50, "3.05E8"));
+            log.append(packets(START + 70_000, 10, "3.05E8"));
+
+            List<AudioStore.Transmission> transmissions = log.transmissions(START, START + 120_000);
+            assertThat(transmissions, hasSize(2));
+            assertThat(transmissions.get(0).getStart(), equalTo(START + 59_000));
+            assertThat(transmissions.get(0).getEnd(), equalTo(START + 59_000 + 49 * 40 + 40));
+            assertThat(transmissions.get(0).getPacketCount(), equalTo(50));
+            assertThat(transmissions.get(1).getLabel(), equalTo("3.05E8"));
+        }
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for(Path tx : files.filter(p -> p.toString().endsWith(".tx")).collect(Collectors.toList())) {
+                Files.delete(tx);
+            }
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(log.transmissions(START, START + 120_000), hasSize(2));
+            assertThat(log.transmissions(START + 60_000, START + 61_000).get(0).getStart(), equalTo(START + 60_000));
+        }
+    }
+
+    @Test
+    public void catalogsLabels(@TempDir Path dir) throws IOException {
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.append(packets(START, 10, "2.51E8"));
+            log.append(packets(START + 30_000, 100, "3.05E8"));
+            log.append(packets(START + 7_200_000, 10, "2.51E8"));
+
+            List<AudioStore.LabelSummary> labels = log.labels(START + 31_000, START + 32_000);
+            assertThat(labels, hasSize(1));
+            assertThat(labels.get(0).getLabel(), equalTo("3.05E8"));
+            assertThat(labels.get(0).getFirst(), equalTo(START + 30_000));
+            assertThat(labels.get(0).getLast(), equalTo(START + 30_000 + 99 * 40));
+            assertThat(labels.get(0).getPacketCount(), equalTo(100L));
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            List<AudioStore.LabelSummary> labels = log.labels(START + 7_000_000, START + 8_000_000);
+            assertThat(labels, hasSize(1));
+            assertThat(labels.get(0).getLabel(), equalTo("2.51E8"));
+            assertThat(labels.get(0).getFirst(), equalTo(START));
+            assertThat(labels.get(0).getPacketCount(), equalTo(20L));
+            assertThat(log.labels(START, START + 8_000_000), hasSize(2));
+        }
+    }
+
+    @Test
+    public void storesPacketsOfSeveralLabelsOnce(@TempDir Path dir) throws IOException {
+        List<String> labels = List.of("3.05E8", "2.51E8");
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.append(LongStream.range(0, 3000)
+                    .mapToObj(i -> new AudioStore.SimplePacket(START + i * 40, new byte[100], labels))
+                    .collect(Collectors.toList()));
+            log.append(packets(START + 120_000, 10, "3.05E8"));
+
+            long recordBytes;
+            try (Stream<Path> files = Files.list(dir)) {
+                recordBytes = files.filter(p -> p.toString().endsWith(".seg")).mapToLong(p -> p.toFile().length()).sum();
+            }
+            assertThat(recordBytes, lessThan(3000L * (PacketLog.RECORD_HEADER_BYTES + 100) + 1000));
+        }
+
+        // Reopened with the label indexes rebuilt from the records
+        try (Stream<Path> files = Files.list(dir)) {
+            for(Path file : files.filter(p -> p.toString().endsWith(".lidx") || p.toString().endsWith(".cat")).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(log.readAll("3.05E8").count(), equalTo(3010L));
+            assertThat(log.readAll("2.51E8").count(), equalTo(3000L));
+            assertThat(log.view(START, START + 200_000, "2.51E8").count(), equalTo(3000L));
+
+            // A packet per label when not reading by label
+            List<AudioStore.Packet> all = log.read(START, START + 79).collect(Collectors.toList());
+            assertThat(all.stream().map(AudioStore.Packet::getLabel).collect(Collectors.toList()),
+                    contains("3.05E8", "2.51E8", "3.05E8", "2.51E8"));
+            assertThat(log.view(START, START + 79, null).map(AudioStore.Packet::getLabel).collect(Collectors.toList()),
+                    contains("3.05E8", "2.51E8", "3.05E8", "2.51E8"));
+
+            assertThat(log.transmissions(START, START + 10_000), hasSize(2));
+            assertThat(log.labels(START, START + 200_000), hasSize(2));
+        }
+    }
+
+    @Test
+    public void compactsClosedSegments(@TempDir Path dir) {
+        try (PacketLog log = PacketLog.open(dir)) {
+            log.append(packets(START, 10, "3.05E8"));
+            log.append(packets(START + 120_000, 10, "3.05E8"));
+
+            // The first segment ends where the second, still open, starts
+            List<Interval<Long>> compactable = log.compactable(START + 7_200_000);
+            assertThat(compactable, hasSize(1));
+            assertThat(compactable.get(0).getStart(), equalTo(START));
+            assertThat(compactable.get(0).getEnd(), equalTo(START + 120_000));
+
+            log.compact(START);
+            assertThat(log.expirable(START + 7_200_000), hasSize(1));
+            assertThat(log.compactable(START + 7_200_000), empty());
+            assertThat(log.read(START, START + 60_000).count(), equalTo(0L));
+            assertThat(log.transmissions(START, START + 60_000), hasSize(1));
+        }
+
+        try (PacketLog log = PacketLog.open(dir)) {
+            assertThat(log.read(START, START + 7_200_000).count(), equalTo(10L));
+            assertThat(log.labels(START, START + 60_000), hasSize(1));
+            // The last segment, now closed, ends with its hour
+            assertThat(log.compactable(START + 7_200_000).get(0).getEnd(), equalTo(START + 60_000 + 3_600_000));
+
+            assertThat(log.delete(START), greaterThan(0L));
+            assertThat(log.expirable(START + 7_200_000), hasSize(1));
+            assertThat(log.transmissions(START, START + 60_000), empty());
+        }
+    }
+
+    @Test
+    public void closedLogIsReadOnly(@TempDir Path dir) {
+        PacketLog log = PacketLog.open(dir);
+        log.append(packets(START, 1000, "3.05E8"));
+        long open = log.memoryBytes();
+
+        log.close();
+        // Only the log's label catalog is left
+        assertThat(log.memoryBytes(), lessThan(open / 10));
+        assertThat(log.read(START, START + 60_000).count(), equalTo(1000L));
+        assertThrows(PacketLog.ClosedException.class, () -> log.append(packets(START + 60_000, 1, "3.05E8")));
+    }
+}
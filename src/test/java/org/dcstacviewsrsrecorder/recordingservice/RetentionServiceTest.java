@@ -0,0 +1,63 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.dcstacviewsrsrecorder.tacview.AcmiCheckpoints;
+import org.dcstacviewsrsrecorder.tacview.AcmiFileWriter;
+import org.dcstacviewsrsrecorder.tacview.AcmiIndex;
+import org.dcstacviewsrsrecorder.tacview.TacviewRecorder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+public class RetentionServiceTest {
+
+    @Test
+    public void onlyClosedAcmiFilesAreDeleted(@TempDir Path dir) throws IOException {
+        Path acmi = Files.createDirectories(dir.resolve("session/acmi"));
+        Instant first = Instant.parse("2021-06-01T00:00:00Z");
+        Instant second = Instant.parse("2021-06-01T02:00:00Z");
+        Files.write(acmi.resolve(AcmiFileWriter.toFileName("Mission", first)), new byte[100]);
+        Files.write(acmi.resolve(AcmiFileWriter.toFileName("Mission", second)), new byte[10]);
+        Files.write(AcmiIndex.indexFile(acmi.resolve(AcmiFileWriter.toFileName("Mission", first))), new byte[16]);
+        Files.write(AcmiIndex.indexFile(acmi.resolve(AcmiFileWriter.toFileName("Mission", second))), new byte[16]);
+        Files.write(AcmiCheckpoints.checkpointFile(acmi.resolve(AcmiFileWriter.toFileName("Mission", first))), new byte[20]);
+        Files.write(AcmiCheckpoints.checkpointFile(acmi.resolve(AcmiFileWriter.toFileName("Mission", second))), new byte[20]);
+
+        long now = System.currentTimeMillis();
+        List<RetentionService.Unit> units = RetentionService.acmiUnits(dir, now);
+        assertThat(units, hasSize(1));
+        assertThat(units.get(0).getStart(), equalTo(first.toEpochMilli()));
+        assertThat(units.get(0).getEnd(), equalTo(second.toEpochMilli()));
+
+        assertThat(RetentionService.sizeOf(dir), equalTo(182L));
+        assertThat(units.get(0).delete(), equalTo(136L)); // with its index and checkpoints
+        assertThat(RetentionService.sizeOf(dir), equalTo(46L));
+    }
+
+    @Test
+    public void theLastAcmiFileClosesOnceNoLongerWritten(@TempDir Path dir) throws IOException {
+        Path acmi = Files.createDirectories(dir.resolve("session/acmi"));
+        Instant start = Instant.parse("2021-06-01T00:00:00Z");
+        Path last = Files.write(acmi.resolve(AcmiFileWriter.toFileName("Mission", start)), new byte[10]);
+        long now = System.currentTimeMillis();
+
+        Files.setLastModifiedTime(last, FileTime.fromMillis(now - TacviewRecorder.CONNECTION_PERIOD.toMillis() + 60_000));
+        assertThat(RetentionService.acmiUnits(dir, now), hasSize(0)); // may still be recording
+
+        long written = now - TacviewRecorder.CONNECTION_PERIOD.toMillis() - 60_000;
+        Files.setLastModifiedTime(last, FileTime.fromMillis(written));
+        List<RetentionService.Unit> units = RetentionService.acmiUnits(dir, now);
+        assertThat(units, hasSize(1));
+        assertThat(units.get(0).getStart(), equalTo(start.toEpochMilli()));
+        assertThat(units.get(0).getEnd(), equalTo(written));
+    }
+}
@@ -0,0 +1,118 @@
+package org.dcstacviewsrsrecorder.recordingservice;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.dcstacviewsrsrecorder.tacview.AcmiCheckpoints;
+import org.dcstacviewsrsrecorder.tacview.AcmiIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class TacviewQueryServiceTest {
+    static final Instant FROM = Instant.ofEpochMilli(Fixtures.START + 10_000);
+    static final Instant UNTIL = Instant.ofEpochMilli(Fixtures.START + 20_000);
+
+    @Test
+    public void splicesTheSameWithOrWithoutTheIndex(@TempDir Path dir) throws IOException {
+        Path indexed = dir.resolve("indexed");
+        Path unindexed = dir.resolve("unindexed");
+        Fixtures.acmiSegment(indexed);
+        Files.delete(AcmiIndex.indexFile(Fixtures.acmiSegment(unindexed)));
+
+        TacviewQueryService service = new TacviewQueryService(dir.resolve("results"), TacviewQueryService.DISK_BUDGET_BYTES);
+        try {
+            String spliced = read(service.query(indexed, FROM, UNTIL, "spliced.txt.acmi"));
+            assertThat(spliced, equalTo(read(service.query(unindexed, FROM, UNTIL, "spliced.txt.acmi"))));
+            assertThat(spliced, containsString("0,Event=RecordingTimestamp|1622509159"));
+            assertThat(spliced, not(containsString("0,Event=RecordingTimestamp|1622509160")));
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void splicesTheSameFromACheckpoint(@TempDir Path dir) throws IOException {
+        Path checkpointed = dir.resolve("checkpointed");
+        Path replayed = dir.resolve("replayed");
+        Fixtures.acmiSegment(checkpointed, 5_000);
+        Path segment = Fixtures.acmiSegment(replayed);
+        Files.delete(AcmiIndex.indexFile(segment));
+        Files.delete(AcmiCheckpoints.checkpointFile(segment));
+
+        TacviewQueryService service = new TacviewQueryService(dir.resolve("results"), TacviewQueryService.DISK_BUDGET_BYTES);
+        try {
+            for(long from : new long[]{ 3_000, 12_300, 25_000 }) {
+                Instant start = Instant.ofEpochMilli(Fixtures.START + from);
+                Instant end = start.plusSeconds(3);
+                assertThat(
+                        read(service.query(checkpointed, start, end, "spliced.txt.acmi")),
+                        equalTo(read(service.query(replayed, start, end, "spliced.txt.acmi")))
+                );
+            }
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void readsAResultEvictedAfterItWasOpened(@TempDir Path dir) throws IOException {
+        Path recording = dir.resolve("recording");
+        Fixtures.acmiSegment(recording);
+        Path results = dir.resolve("results");
+        Files.createDirectories(results);
+        Files.writeString(results.resolve("left.zip"), "by a previous run");
+
+        TacviewQueryService service = new TacviewQueryService(results, 1); // nothing stays cached
+        assertThat(files(results), equalTo(0L));
+        TacviewQueryService.Result first = service.query(recording, FROM, UNTIL, "spliced.txt.acmi");
+        TacviewQueryService.Result second = service.query(recording, UNTIL, UNTIL.plusSeconds(5), "spliced.txt.acmi");
+        assertThat(files(results), equalTo(0L)); // both evicted and deleted
+
+        String spliced = read(first);
+        assertThat(spliced, containsString("0,Event=RecordingTimestamp|1622509159"));
+        read(second);
+
+        try (InputStream in = service.query(recording, FROM, UNTIL, "spliced.txt.acmi").getInputStream(0, 4)) {
+            assertThat(in.readAllBytes().length, equalTo(4));
+        }
+        service.close();
+    }
+
+    @Test
+    public void versionChangesAsTheRecordingGrows(@TempDir Path dir) throws IOException {
+        Path segment = Fixtures.acmiSegment(dir);
+        TacviewQueryService service = new TacviewQueryService();
+        String version = service.version(dir, FROM, UNTIL);
+        assertThat(service.version(dir, FROM, UNTIL), equalTo(version));
+
+        Files.writeString(segment, "#30.00\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        assertThat(service.version(dir, FROM, UNTIL), not(equalTo(version)));
+        assertThat(service.version(dir.resolve("missing"), FROM, UNTIL), equalTo("0"));
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static String read(TacviewQueryService.Result result) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(result.getInputStream())) {
+            in.getNextEntry();
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.dcstacviewsrsrecorder.recordingservice.web;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ConditionalRequestsTest {
+
+    @Test
+    public void notModifiedByIfNoneMatch() {
+        assertThat(ConditionalRequests.notModified(headers(HttpHeaders.IF_NONE_MATCH, "\"v1\""), "v1"), equalTo(true));
+        assertThat(ConditionalRequests.notModified(headers(HttpHeaders.IF_NONE_MATCH, "W/\"v1\", \"v0\""), "v1"), equalTo(true));
+        assertThat(ConditionalRequests.notModified(headers(HttpHeaders.IF_NONE_MATCH, "*"), "v1"), equalTo(true));
+        assertThat(ConditionalRequests.notModified(headers(HttpHeaders.IF_NONE_MATCH, "\"v0\""), "v1"), equalTo(false));
+        assertThat(ConditionalRequests.notModified(new HttpHeaders(), "v1"), equalTo(false));
+    }
+
+    @Test
+    public void rangeOnlyOfTheSameVersion() {
+        HttpHeaders headers = headers(HttpHeaders.RANGE, "bytes=10-19");
+        assertThat(ConditionalRequests.range(headers, "v1").map(r -> r.getRangeStart(100)), equalTo(Optional.of(10L)));
+
+        headers.set(HttpHeaders.IF_RANGE, "\"v1\"");
+        assertThat(ConditionalRequests.range(headers, "v1").map(r -> r.getRangeEnd(100)), equalTo(Optional.of(19L)));
+        assertThat(ConditionalRequests.range(headers, "v2"), equalTo(Optional.<HttpRange>empty()));
+
+        assertThat(ConditionalRequests.range(headers(HttpHeaders.RANGE, "bytes=0-1,5-6"), "v1"), equalTo(Optional.<HttpRange>empty()));
+        assertThat(ConditionalRequests.range(headers(HttpHeaders.RANGE, "lines=1-2"), "v1"), equalTo(Optional.<HttpRange>empty()));
+    }
+
+    private static HttpHeaders headers(String name, String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(name, value);
+        return headers;
+    }
+}
@@ -0,0 +1,78 @@
+package org.dcstacviewsrsrecorder.recordingservice.web;
+
+import org.dcstacviewsrsrecorder.recordingservice.ExportCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+public class RecorderControllerTest {
+    private static final String URL = "/record/session/download/session_2.51E8_2110171200_2110171300.ogg";
+    private static final byte[] EXPORT = "OggS rendered export".getBytes();
+
+    private MockMvc mvc;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        ExportCache.Export export = mock(ExportCache.Export.class);
+        when(export.getTag()).thenReturn("v2-radio-1");
+        when(export.getLength()).thenReturn((long) EXPORT.length);
+        when(export.awaitLength()).thenReturn((long) EXPORT.length);
+        when(export.getInputStream()).thenReturn(new ByteArrayInputStream(EXPORT));
+        when(export.getInputStream(5, 10)).thenReturn(new ByteArrayInputStream(EXPORT, 5, 5));
+
+        RecorderController controller = new RecorderController();
+        controller.exportCache = mock(ExportCache.class);
+        when(controller.exportCache.tag(anyString(), anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn("v2-radio-1");
+        when(controller.exportCache.open(anyString(), anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(export);
+        mvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    public void servesTheWholeExportWhenIfRangeDoesNotMatch() throws Exception {
+        MvcResult started = mvc.perform(get(URL)
+                        .header(HttpHeaders.RANGE, "bytes=5-9")
+                        .header(HttpHeaders.IF_RANGE, "\"v1-radio-1\""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, EXPORT.length))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"v2-radio-1\""))
+                .andExpect(content().bytes(EXPORT));
+    }
+
+    @Test
+    public void servesTheRangeWhenIfRangeMatches() throws Exception {
+        MvcResult started = mvc.perform(get(URL)
+                        .header(HttpHeaders.RANGE, "bytes=5-9")
+                        .header(HttpHeaders.IF_RANGE, "\"v2-radio-1\""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(started))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-9/" + EXPORT.length))
+                .andExpect(content().bytes(Arrays.copyOfRange(EXPORT, 5, 10)));
+    }
+
+    @Test
+    public void notModifiedByTheTagAlone() throws Exception {
+        mvc.perform(get(URL).header(HttpHeaders.IF_NONE_MATCH, "\"v2-radio-1\""))
+                .andExpect(status().isNotModified());
+    }
+}
@@ -0,0 +1,65 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+
+public class AcmiCheckpointsTest {
+
+    @Test
+    public void checkpointsTheStateBeforeATimestamp(@TempDir Path dir) throws IOException {
+        Path segment = Fixtures.acmiSegment(dir, 5_000);
+        byte[] bytes = Files.readAllBytes(segment);
+
+        assertThat(AcmiCheckpoints.floor(segment, Fixtures.START + 4_000), nullValue()); // none at the start
+        AcmiCheckpoints.Checkpoint checkpoint = AcmiCheckpoints.floor(segment, Fixtures.START + 12_300);
+        assertThat(checkpoint.getTime(), lessThanOrEqualTo(Fixtures.START + 12_300));
+        String rest = new String(bytes, (int) checkpoint.getOffset(), bytes.length - (int) checkpoint.getOffset(), StandardCharsets.UTF_8);
+        assertThat(rest, startsWith("0,Event=RecordingTimestamp|" + checkpoint.getTime() + "\n"));
+
+        // The state of everything before the checkpoint's timestamp, and it restores the same
+        AcmiStreamSplicer replayed = AcmiStreamSplicer.aggregator();
+        List<String> lines = Fixtures.acmiLines();
+        for(String line : lines.subList(0, lines.indexOf("0,Event=RecordingTimestamp|" + checkpoint.getTime()))) {
+            replayed.apply(line);
+        }
+        assertThat(checkpoint.getState(), equalTo(replayed.checkpoint()));
+
+        AcmiStreamSplicer restored = AcmiStreamSplicer.aggregator();
+        restored.restore(checkpoint.getState());
+        assertThat(restored.checkpoint(), equalTo(checkpoint.getState()));
+    }
+
+    @Test
+    public void heldUntilTheSegmentIsFlushed(@TempDir Path dir) throws IOException {
+        Path segment = dir.resolve(AcmiFileWriter.toFileName("held", Instant.ofEpochMilli(Fixtures.START)));
+        String state = "0,ReferenceTime=2021-06-01T00:59:00Z\n" + "x".repeat(16 * 1024); // past any buffer
+        try(AcmiCheckpoints.Writer writer = new AcmiCheckpoints.Writer(segment, 1_000, Long.MAX_VALUE)) {
+            writer.checkpoint(Fixtures.START, 0, state);
+            assertThat(AcmiCheckpoints.floor(segment, Fixtures.START), nullValue());
+
+            writer.flush();
+            assertThat(AcmiCheckpoints.floor(segment, Fixtures.START).getState(), equalTo(state));
+        }
+    }
+
+    @Test
+    public void noneWithoutACheckpointFile(@TempDir Path dir) throws IOException {
+        Path segment = Fixtures.acmiSegment(dir, 5_000);
+        Files.delete(AcmiCheckpoints.checkpointFile(segment));
+        assertThat(AcmiCheckpoints.floor(segment, Fixtures.START + 20_000), nullValue());
+    }
+}
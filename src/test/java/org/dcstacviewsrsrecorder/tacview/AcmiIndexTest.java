@@ -0,0 +1,75 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+
+public class AcmiIndexTest {
+
+    @Test
+    public void indexesTimestampsAboutEverySecond(@TempDir Path dir) throws IOException {
+        Path segment = Fixtures.acmiSegment(dir);
+        assertThat(segment.getFileName().toString(), equalTo("Tacview-20210601-005900-DCS-Synthetic training sortie.txt.acmi"));
+        assertThat(Files.exists(AcmiIndex.indexFile(segment)), equalTo(true));
+
+        AcmiIndex index = AcmiIndex.read(segment);
+        assertThat(index.size(), equalTo(27)); // 30s of timestamps about 200ms apart, an entry at most every second
+
+        byte[] bytes = Files.readAllBytes(segment);
+        for(long millis = Fixtures.START + 1_000; millis < Fixtures.START + 28_000; millis += 700) {
+            long floor = timestamp(bytes, index.floor(millis));
+            long after = timestamp(bytes, index.after(millis));
+            assertThat(floor, lessThanOrEqualTo(millis));
+            assertThat(after, greaterThan(millis));
+            assertThat(after - floor, lessThan(AcmiIndex.INDEX_INTERVAL_MILLIS + 250));
+        }
+
+        assertThat(index.floor(Fixtures.START), equalTo(-1L));
+        assertThat(index.after(Fixtures.START + 60_000), equalTo(-1L));
+    }
+
+    @Test
+    public void heldUntilTheSegmentIsFlushed(@TempDir Path dir) throws IOException {
+        Path segment = dir.resolve(AcmiFileWriter.toFileName("held", Instant.ofEpochMilli(Fixtures.START)));
+        try(AcmiIndex.Writer writer = new AcmiIndex.Writer(segment)) {
+            for(int i = 0; i < 1_000; i++) { // past any buffer
+                writer.timestamp(Fixtures.START + i * AcmiIndex.INDEX_INTERVAL_MILLIS, i * 100L);
+            }
+            assertThat(AcmiIndex.read(segment).size(), equalTo(0));
+
+            writer.flush();
+            assertThat(AcmiIndex.read(segment).size(), equalTo(1_000));
+        }
+    }
+
+    @Test
+    public void emptyWithoutAnIndexFile(@TempDir Path dir) throws IOException {
+        Path segment = Fixtures.acmiSegment(dir);
+        Files.delete(AcmiIndex.indexFile(segment));
+
+        AcmiIndex index = AcmiIndex.read(segment);
+        assertThat(index.size(), equalTo(0));
+        assertThat(index.floor(Fixtures.START + 10_000), equalTo(-1L));
+        assertThat(index.after(Fixtures.START + 10_000), equalTo(-1L));
+    }
+
+    // The timestamp of the line at offset
+    private static long timestamp(byte[] bytes, long offset) {
+        String rest = new String(bytes, (int) offset, bytes.length - (int) offset, StandardCharsets.UTF_8);
+        assertThat(rest, startsWith("0,Event=RecordingTimestamp|"));
+        return Long.parseLong(rest.substring("0,Event=RecordingTimestamp|".length(), rest.indexOf('\n')));
+    }
+}
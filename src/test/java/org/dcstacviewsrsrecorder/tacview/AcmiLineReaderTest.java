@@ -0,0 +1,72 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.Fixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AcmiLineReaderTest {
+
+    @Test
+    public void readsTheLinesScannerDid(@TempDir Path dir) throws IOException {
+        StringBuilder acmi = new StringBuilder();
+        for(int i = 0; i < 20; i++) { // several buffers
+            Fixtures.acmiLines().forEach(l -> acmi.append(l).append('\n'));
+        }
+        acmi.append("0,Comments=Escaped\\\nacross lines\\\n\n");
+        acmi.append("0,Briefing=").append("Ü".repeat(AcmiLineReader.BUFFER_BYTES)).append("\r\n"); // longer than the buffer
+        acmi.append("101,T=1|2|3,Name=Ка-50\n");
+        acmi.append("#30.00"); // unterminated
+        Path segment = dir.resolve("segment.txt.acmi");
+        Files.writeString(segment, acmi, StandardCharsets.UTF_8);
+
+        assertThat(read(segment, 0, -1), equalTo(scan(acmi.toString())));
+
+        int start = acmi.indexOf("0,Comments=");
+        int end = acmi.indexOf("#30.00");
+        List<String> range = read(segment, bytes(acmi.substring(0, start)), bytes(acmi.substring(0, end)));
+        assertThat(range, equalTo(scan(acmi.substring(start, end))));
+        assertThat(range.size(), equalTo(3));
+    }
+
+    @Test
+    public void skipsEmptyLines(@TempDir Path dir) throws IOException {
+        Path segment = dir.resolve("segment.txt.acmi");
+        Files.writeString(segment, "\n#0.00\n\n\n0,Event=RecordingTimestamp|1\n\n", StandardCharsets.UTF_8);
+        assertThat(read(segment, 0, -1), equalTo(List.of("#0.00", "0,Event=RecordingTimestamp|1")));
+    }
+
+    private static List<String> read(Path segment, long start, long end) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (AcmiLineReader reader = AcmiLineReader.open(segment, start, end)) {
+            while(reader.next()) {
+                lines.add(reader.line());
+            }
+        }
+        return lines;
+    }
+
+    private static long bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // As TacviewQueryService read segments before
+    private static List<String> scan(String acmi) {
+        List<String> lines = new ArrayList<>();
+        try (Scanner scanner = new Scanner(acmi)) {
+            scanner.useDelimiter("(?<!\\\\)\\n");
+            scanner.forEachRemaining(lines::add);
+        }
+        return lines;
+    }
+}
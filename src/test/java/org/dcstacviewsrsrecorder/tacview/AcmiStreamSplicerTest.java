@@ -0,0 +1,61 @@
+package org.dcstacviewsrsrecorder.tacview;
+
+import org.dcstacviewsrsrecorder.recordingservice.Interval;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class AcmiStreamSplicerTest {
+
+    @Test
+    public void parsesNumbersAsDoubleDoes() {
+        for(String s : List.of("0", "-0", "41.123456789", "-0.0000001", "5.", ".5", "9007199254740993", "123456789.123456789",
+                "0.30000000000000004", "1e5", "+2.5", "1.0000000000000000000000001", "007.100")) {
+            byte[] bytes = ("|" + s + "|").getBytes(StandardCharsets.US_ASCII);
+            assertThat(s, AcmiStreamSplicer.parseDouble(bytes, 1, bytes.length - 1), equalTo(Double.parseDouble(s)));
+        }
+        byte[] timestamp = "|1622509140000|".getBytes(StandardCharsets.US_ASCII);
+        assertThat(AcmiStreamSplicer.parseLong(timestamp, 1, timestamp.length - 1), equalTo(1622509140000L));
+    }
+
+    @Test
+    public void keepsEscapedCommasInValues() throws IOException {
+        AcmiStreamSplicer splicer = new AcmiStreamSplicer(Interval.between(Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000)));
+        splicer.apply("0,ReferenceTime=2021-06-01T00:00:00Z");
+        splicer.apply("#0");
+        splicer.apply("101,T=1|2|3,Name=F-16C\\, Viper,Pilot=A");
+        splicer.apply("101,T=|2.5|,Pilot=B");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] line = "0,Event=RecordingTimestamp|1000".getBytes(StandardCharsets.UTF_8);
+        splicer.apply(line, 0, line.length, out);
+        String splice = out.toString(StandardCharsets.UTF_8);
+        assertThat(splice, containsString("\n101,T=1.0|2.5|3.0,"));
+        assertThat(splice, containsString(",Name=F-16C\\, Viper"));
+        assertThat(splice, containsString(",Pilot=B"));
+    }
+
+    @Test
+    public void dropsRemovedObjects() {
+        AcmiStreamSplicer splicer = AcmiStreamSplicer.aggregator();
+        splicer.apply("0,ReferenceTime=2021-06-01T00:00:00Z");
+        splicer.apply("#0");
+        splicer.apply("101,T=1|2|3,Name=F-16C");
+        splicer.apply("102,T=1|2|3,Name=AIM-120C");
+        splicer.apply("#1");
+        splicer.apply("-102");
+
+        String checkpoint = splicer.checkpoint();
+        assertThat(checkpoint, containsString("\n101,"));
+        assertThat(checkpoint, not(containsString("102")));
+    }
+}